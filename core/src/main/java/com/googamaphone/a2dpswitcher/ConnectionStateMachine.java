@@ -0,0 +1,970 @@
+package com.googamaphone.a2dpswitcher;
+
+import com.googamaphone.compat.BluetoothA2dpStates;
+import com.googamaphone.utils.DumpFormatter;
+import com.googamaphone.utils.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Drives connection requests for each device through enabling the adapter,
+ * bonding, connecting and disconnecting, with deadlines and retries.
+ * <p/>
+ * Callers submit requests with {@link #connect}, {@link #disconnect} and
+ * {@link #cancel}, and forward adapter, bond and connection state broadcasts.
+ * Each phase has a deadline; connection attempts that fail or time out are
+ * retried with exponential backoff before the request is reported as
+ * {@link #STATE_FAILED}. The owner is asked to call {@link #onDeadline} when
+ * the earliest deadline passes.
+ * <p/>
+ * Only one connect or disconnect command is sent to the audio service at a
+ * time, since it handles overlapping profile operations badly. Later commands
+ * wait in a queue until the command in flight reaches a terminal state or
+ * times out. Queued connections are superseded by a newer connection to
+ * another device, since only one device can be connected at a time.
+ * <p/>
+ * {@link #disconnectAll} sends its disconnect commands together, and reports
+ * a single result once every device has disconnected or failed to.
+ * <p/>
+ * Times are in milliseconds and must come from a single monotonic clock. This
+ * class has no Android dependencies and is not thread-safe.
+ */
+public class ConnectionStateMachine {
+    /** No request is in progress. */
+    public static final int STATE_IDLE = 0;
+
+    /** Waiting for the adapter to turn on. */
+    public static final int STATE_ENABLING_ADAPTER = 1;
+
+    /** Waiting for the device to bond. */
+    public static final int STATE_BONDING = 2;
+
+    /** Waiting for the device to connect, or to retry connecting. */
+    public static final int STATE_CONNECTING = 3;
+
+    /** The device connected as requested. */
+    public static final int STATE_CONNECTED = 4;
+
+    /** Waiting for the device to disconnect, or to retry disconnecting. */
+    public static final int STATE_DISCONNECTING = 5;
+
+    /** The request failed. See the reason for details. */
+    public static final int STATE_FAILED = 6;
+
+    private static final String[] STATE_NAMES = {
+            "idle", "enabling", "bonding", "connecting", "connected", "disconnecting", "failed"
+    };
+
+    public static final int REASON_NONE = 0;
+    public static final int REASON_TIMEOUT = 1;
+    public static final int REASON_ENABLE_FAILED = 2;
+    public static final int REASON_BOND_FAILED = 3;
+    public static final int REASON_CONNECT_FAILED = 4;
+    public static final int REASON_DISCONNECT_FAILED = 5;
+    public static final int REASON_ADAPTER_OFF = 6;
+    public static final int REASON_CANCELED = 7;
+    public static final int REASON_SUPERSEDED = 8;
+
+    /**
+     * Performs requests against the adapter and audio service.
+     */
+    public interface Backend {
+        public boolean isAdapterEnabled();
+        public boolean enableAdapter();
+        public boolean isBonded(long deviceId);
+        public boolean createBond(long deviceId);
+
+        /**
+         * @return The last known A2DP connection state of the device.
+         */
+        public int getConnectionState(long deviceId);
+
+        public boolean connect(long deviceId);
+        public boolean disconnect(long deviceId);
+
+        /**
+         * Asks the owner to call {@link ConnectionStateMachine#onDeadline} at
+         * the given time, replacing any previous request.
+         *
+         * @param time The time of the earliest deadline, or -1 if there is
+         *            none.
+         */
+        public void scheduleDeadline(long time);
+    }
+
+    /**
+     * Receives changes in request state.
+     */
+    public interface Listener {
+        /**
+         * @param deviceId The device ID.
+         * @param isConnect {@code true} for a connect request, {@code false}
+         *            for a disconnect request.
+         * @param state The new request state, e.g. {@link #STATE_FAILED}.
+         * @param reason The reason for the change, e.g. {@link #REASON_TIMEOUT}.
+         */
+        public void onRequestStateChanged(long deviceId, boolean isConnect, int state,
+                int reason);
+
+        /**
+         * Called when every request in a batch from {@link #disconnectAll}
+         * has finished.
+         *
+         * @param batchId The ID returned by {@link #disconnectAll}.
+         * @param succeeded The number of devices that disconnected.
+         * @param failed The number of devices that failed to disconnect, or
+         *            whose request was replaced.
+         * @param latency The time from the request to the last result.
+         */
+        public void onBatchFinished(int batchId, int succeeded, int failed, long latency);
+    }
+
+    private final HashMap<Long, Request> mRequests = new HashMap<Long, Request>();
+    private final Backend mBackend;
+
+    /** Requests waiting for the command in flight, in order of arrival. */
+    private final ArrayList<Request> mQueue = new ArrayList<Request>();
+
+    /** Time from queueing a request to sending its command. */
+    private final LatencyHistogram mQueueWaits = new LatencyHistogram();
+
+    /**
+     * Commands sent to the audio service that haven't reached a terminal
+     * state. There is at most one, unless they belong to the same batch.
+     */
+    private final ArrayList<Command> mInFlight = new ArrayList<Command>();
+
+    private Listener mListener;
+
+    private long mEnableTimeout = 10000;
+    private long mBondTimeout = 30000;
+    private long mConnectTimeout = 10000;
+    private long mDisconnectTimeout = 5000;
+
+    private int mMaxAttempts = 3;
+    private long mInitialBackoff = 1000;
+    private long mMaxBackoff = 8000;
+
+    /** The deadline last passed to the backend, or -1. */
+    private long mScheduledDeadline = -1;
+
+    private int mSubmittedCount;
+    private int mSucceededCount;
+    private int mFailedCount;
+    private int mCanceledCount;
+    private int mRetryCount;
+    private int mTimeoutCount;
+    private int mSupersededCount;
+    private int mIssuedCount;
+    private int mMaxQueueDepth;
+    private int mBatchCount;
+    private int mLastBatchId;
+
+    /**
+     * Constructs a new {@link ConnectionStateMachine}.
+     *
+     * @param backend The backend used to perform requests.
+     */
+    public ConnectionStateMachine(Backend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException();
+        }
+
+        mBackend = backend;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the time allowed for each phase, in milliseconds.
+     */
+    public void setDeadlines(long enable, long bond, long connect, long disconnect) {
+        mEnableTimeout = enable;
+        mBondTimeout = bond;
+        mConnectTimeout = connect;
+        mDisconnectTimeout = disconnect;
+    }
+
+    /**
+     * Sets the retry policy for connecting and disconnecting. The delay
+     * before each retry doubles, starting at the initial backoff.
+     *
+     * @param maxAttempts The maximum number of attempts, including the first.
+     * @param initialBackoff The delay in milliseconds before the first retry.
+     * @param maxBackoff The maximum delay in milliseconds between attempts.
+     */
+    public void setRetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff) {
+        if ((maxAttempts < 1) || (initialBackoff < 0) || (maxBackoff < initialBackoff)) {
+            throw new IllegalArgumentException();
+        }
+
+        mMaxAttempts = maxAttempts;
+        mInitialBackoff = initialBackoff;
+        mMaxBackoff = maxBackoff;
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @return The state of the request for the device, e.g.
+     *         {@link #STATE_CONNECTING}.
+     */
+    public int getState(long deviceId) {
+        final Request request = mRequests.get(deviceId);
+        return (request != null) ? request.state : STATE_IDLE;
+    }
+
+    /**
+     * @return The number of requests waiting for the command in flight.
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return The time requests spent waiting for the command in flight.
+     */
+    public LatencyHistogram getQueueWaits() {
+        return mQueueWaits;
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @return {@code true} if a request to connect the device hasn't finished.
+     */
+    public boolean isConnecting(long deviceId) {
+        final Request request = mRequests.get(deviceId);
+        if ((request == null) || !request.isConnect) {
+            return false;
+        }
+
+        switch (request.state) {
+            case STATE_ENABLING_ADAPTER:
+            case STATE_BONDING:
+            case STATE_CONNECTING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if a connect command is in flight or a request to
+     *         connect any device is queued or hasn't finished.
+     */
+    public boolean hasPendingConnect() {
+        for (Command command : mInFlight) {
+            if (command.isConnect) {
+                return true;
+            }
+        }
+
+        for (Request request : mRequests.values()) {
+            if (request.isConnect && (request.isQueued || isConnecting(request.deviceId))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Requests that a device be connected, turning on the adapter and bonding
+     * first if necessary. Replaces any other request for the device, unless a
+     * request to connect it is already in progress.
+     *
+     * @param deviceId The device ID.
+     * @param now The current time.
+     * @return {@code false} if the request failed immediately.
+     */
+    public boolean connect(long deviceId, long now) {
+        final Request existing = mRequests.get(deviceId);
+        if ((existing == null) || !existing.isConnect || (existing.state == STATE_FAILED)) {
+            final Request request = new Request(deviceId, true);
+            replace(existing, request, now);
+
+            advance(request, now);
+            update(now);
+        }
+
+        return (getState(deviceId) != STATE_FAILED);
+    }
+
+    /**
+     * Requests that a device be disconnected, replacing any other request for
+     * the device.
+     *
+     * @param deviceId The device ID.
+     * @param now The current time.
+     * @return {@code false} if the request failed immediately.
+     */
+    public boolean disconnect(long deviceId, long now) {
+        final Request existing = mRequests.get(deviceId);
+        if ((existing == null) || existing.isConnect || (existing.state == STATE_FAILED)) {
+            final Request request = new Request(deviceId, false);
+            replace(existing, request, now);
+
+            advance(request, now);
+            update(now);
+        }
+
+        return (getState(deviceId) != STATE_FAILED);
+    }
+
+    /**
+     * Requests that several devices be disconnected at once, replacing any
+     * other requests for them. The disconnect commands are sent together
+     * rather than one at a time.
+     *
+     * @param deviceIds The IDs of the devices to disconnect.
+     * @param now The current time.
+     * @return An ID for the batch, which is passed to
+     *         {@link Listener#onBatchFinished}.
+     */
+    public int disconnectAll(long[] deviceIds, long now) {
+        final Batch batch = new Batch(++mLastBatchId, now);
+        final ArrayList<Request> requests = new ArrayList<Request>(deviceIds.length);
+        mBatchCount++;
+
+        // Count every request before starting any, so that the batch can't
+        // finish early.
+        for (long deviceId : deviceIds) {
+            final Request existing = mRequests.get(deviceId);
+            if ((existing != null) && (existing.batch == batch)) {
+                continue;
+            }
+
+            final Request request = new Request(deviceId, false);
+            request.batch = batch;
+            batch.remaining++;
+            replace(existing, request, now);
+            requests.add(request);
+        }
+
+        if (batch.remaining == 0) {
+            finishBatch(batch, now);
+        }
+
+        for (Request request : requests) {
+            advance(request, now);
+        }
+
+        update(now);
+
+        return batch.id;
+    }
+
+    /**
+     * Cancels the request for a device. A connection attempt in progress is
+     * abandoned by disconnecting the device.
+     *
+     * @param deviceId The device ID.
+     * @param now The current time.
+     */
+    public void cancel(long deviceId, long now) {
+        final Request request = mRequests.get(deviceId);
+        if (request == null) {
+            return;
+        }
+
+        if (findInFlight(deviceId, true) >= 0) {
+            abort(deviceId, now);
+        }
+
+        if ((request.state != STATE_CONNECTED) && (request.state != STATE_FAILED)) {
+            mCanceledCount++;
+        }
+
+        finish(request, STATE_IDLE, REASON_CANCELED, now);
+        update(now);
+    }
+
+    /**
+     * Retries every request that is waiting to retry, for example because the
+     * audio service just became available.
+     *
+     * @param now The current time.
+     */
+    public void retryNow(long now) {
+        for (Request request : snapshot()) {
+            if (request.isWaitingToRetry) {
+                request.isWaitingToRetry = false;
+                advance(request, now);
+            }
+        }
+
+        update(now);
+    }
+
+    /**
+     * Called when the adapter turns on or off.
+     *
+     * @param enabled {@code true} if the adapter turned on.
+     * @param now The current time.
+     */
+    public void onAdapterStateChanged(boolean enabled, long now) {
+        if (!enabled) {
+            // Nothing is in flight once the adapter is off.
+            mInFlight.clear();
+        }
+
+        for (Request request : snapshot()) {
+            if (request.state == STATE_ENABLING_ADAPTER) {
+                // Turning off is stale while waiting for the adapter to turn on.
+                if (enabled && !request.isWaitingToRetry) {
+                    advance(request, now);
+                }
+            } else if (!enabled) {
+                if ((request.state == STATE_CONNECTED) || !request.isConnect) {
+                    // Nothing can be connected while the adapter is off.
+                    finish(request, STATE_IDLE, REASON_NONE, now);
+                } else if (request.state != STATE_FAILED) {
+                    finish(request, STATE_FAILED, REASON_ADAPTER_OFF, now);
+                }
+            }
+        }
+
+        update(now);
+    }
+
+    /**
+     * Called when a device finishes bonding or fails to bond.
+     *
+     * @param deviceId The device ID.
+     * @param bonded {@code true} if the device is now bonded.
+     * @param now The current time.
+     */
+    public void onBondStateChanged(long deviceId, boolean bonded, long now) {
+        final Request request = mRequests.get(deviceId);
+        if ((request == null) || (request.state != STATE_BONDING)) {
+            return;
+        }
+
+        if (bonded) {
+            advance(request, now);
+        } else {
+            finish(request, STATE_FAILED, REASON_BOND_FAILED, now);
+        }
+
+        update(now);
+    }
+
+    /**
+     * Called when the A2DP connection state of a device changes.
+     *
+     * @param deviceId The device ID.
+     * @param state The new state, e.g.
+     *            {@link BluetoothA2dpStates#STATE_CONNECTED}.
+     * @param now The current time.
+     */
+    public void onConnectionStateChanged(long deviceId, int state, long now) {
+        final boolean isConnected = isConnected(state);
+        final boolean isDisconnected = (state == BluetoothA2dpStates.STATE_DISCONNECTED);
+
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            final Command command = mInFlight.get(i);
+            if ((command.deviceId == deviceId)
+                    && (isDisconnected || (command.isConnect && isConnected))) {
+                mInFlight.remove(i);
+            }
+        }
+
+        final Request request = mRequests.get(deviceId);
+        if (request == null) {
+            update(now);
+            return;
+        }
+
+        switch (request.state) {
+            case STATE_CONNECTING:
+                if (isConnected) {
+                    // This may be a late result from an attempt that was
+                    // being retried, which is just as good.
+                    finish(request, STATE_CONNECTED, REASON_NONE, now);
+                } else if (isDisconnected && !request.isWaitingToRetry && !request.isQueued) {
+                    retry(request, STATE_CONNECTING, REASON_CONNECT_FAILED, now);
+                }
+                break;
+            case STATE_CONNECTED:
+                if (isDisconnected) {
+                    finish(request, STATE_IDLE, REASON_NONE, now);
+                }
+                break;
+            case STATE_DISCONNECTING:
+                if (isDisconnected) {
+                    finish(request, STATE_IDLE, REASON_NONE, now);
+                }
+                break;
+        }
+
+        update(now);
+    }
+
+    /**
+     * Handles every deadline that has passed. Called by the owner at the time
+     * passed to {@link Backend#scheduleDeadline}.
+     *
+     * @param now The current time.
+     */
+    public void onDeadline(long now) {
+        mScheduledDeadline = -1;
+
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            if (mInFlight.get(i).deadline <= now) {
+                // The terminal broadcast never came, so stop waiting for it.
+                // The owning request handles its own deadline below.
+                mInFlight.remove(i);
+            }
+        }
+
+        for (Request request : snapshot()) {
+            if ((request.deadline < 0) || (request.deadline > now)) {
+                continue;
+            }
+
+            request.deadline = -1;
+
+            if (request.isWaitingToRetry) {
+                request.isWaitingToRetry = false;
+                advance(request, now);
+                continue;
+            }
+
+            mTimeoutCount++;
+
+            switch (request.state) {
+                case STATE_ENABLING_ADAPTER:
+                case STATE_BONDING:
+                    finish(request, STATE_FAILED, REASON_TIMEOUT, now);
+                    break;
+                case STATE_CONNECTING:
+                    // Abandon the stuck attempt before trying again.
+                    abort(request.deviceId, now);
+                    retry(request, STATE_CONNECTING, REASON_TIMEOUT, now);
+                    break;
+                case STATE_DISCONNECTING:
+                    retry(request, STATE_DISCONNECTING, REASON_TIMEOUT, now);
+                    break;
+            }
+        }
+
+        update(now);
+    }
+
+    /**
+     * Writes request counters and requests in progress to the current dump
+     * section.
+     *
+     * @param dump The formatter to write to.
+     */
+    public void dump(DumpFormatter dump) {
+        dump.field("submitted", mSubmittedCount);
+        dump.field("succeeded", mSucceededCount);
+        dump.field("failed", mFailedCount);
+        dump.field("canceled", mCanceledCount);
+        dump.field("retries", mRetryCount);
+        dump.field("timeouts", mTimeoutCount);
+        dump.field("issued", mIssuedCount);
+        dump.field("superseded", mSupersededCount);
+        dump.field("queueDepth", mQueue.size());
+        dump.field("maxQueueDepth", mMaxQueueDepth);
+        dump.histogram("queueWait", mQueueWaits);
+        dump.field("batches", mBatchCount);
+
+        for (Command command : mInFlight) {
+            dump.field("inFlight", (command.isConnect ? "connect " : "disconnect ")
+                    + String.format("%012X", command.deviceId));
+        }
+
+        for (Request request : mRequests.values()) {
+            final String status;
+            if (request.isQueued) {
+                status = "queued";
+            } else if (request.isWaitingToRetry) {
+                status = "waiting";
+            } else {
+                status = "active";
+            }
+
+            dump.row(String.format("%012X", request.deviceId),
+                    request.isConnect ? "connect" : "disconnect", STATE_NAMES[request.state],
+                    request.attempt, status, request.reason);
+        }
+    }
+
+    /**
+     * Performs the next step of a request, based on the current state of the
+     * adapter and device.
+     */
+    private void advance(Request request, long now) {
+        final long deviceId = request.deviceId;
+
+        if (!request.isConnect) {
+            if (mBackend.getConnectionState(deviceId) == BluetoothA2dpStates.STATE_DISCONNECTED) {
+                finish(request, STATE_IDLE, REASON_NONE, now);
+            } else if (!canIssue(request)) {
+                enqueue(request, STATE_DISCONNECTING, now);
+            } else if (!mBackend.disconnect(deviceId)) {
+                retry(request, STATE_DISCONNECTING, REASON_DISCONNECT_FAILED, now);
+            } else {
+                issued(deviceId, false, request.batch, now + mDisconnectTimeout);
+                setState(request, STATE_DISCONNECTING, now + mDisconnectTimeout);
+            }
+            return;
+        }
+
+        if (!mBackend.isAdapterEnabled()) {
+            if (!mBackend.enableAdapter()) {
+                finish(request, STATE_FAILED, REASON_ENABLE_FAILED, now);
+            } else {
+                setState(request, STATE_ENABLING_ADAPTER, now + mEnableTimeout);
+            }
+            return;
+        }
+
+        if (!mBackend.isBonded(deviceId)) {
+            if (request.state == STATE_BONDING) {
+                // Bonding reported success, but the device isn't bonded.
+                finish(request, STATE_FAILED, REASON_BOND_FAILED, now);
+            } else if (!mBackend.createBond(deviceId)) {
+                finish(request, STATE_FAILED, REASON_BOND_FAILED, now);
+            } else {
+                setState(request, STATE_BONDING, now + mBondTimeout);
+            }
+            return;
+        }
+
+        final int state = mBackend.getConnectionState(deviceId);
+        if (isConnected(state)) {
+            finish(request, STATE_CONNECTED, REASON_NONE, now);
+        } else if (state == BluetoothA2dpStates.STATE_CONNECTING) {
+            // Already connecting, so just wait for the result.
+            setState(request, STATE_CONNECTING, now + mConnectTimeout);
+        } else if (!canIssue(request)) {
+            enqueue(request, STATE_CONNECTING, now);
+        } else if (!mBackend.connect(deviceId)) {
+            retry(request, STATE_CONNECTING, REASON_CONNECT_FAILED, now);
+        } else {
+            issued(deviceId, true, null, now + mConnectTimeout);
+            setState(request, STATE_CONNECTING, now + mConnectTimeout);
+        }
+    }
+
+    /**
+     * Puts a request in the queue to wait for the command in flight. Queued
+     * requests have no deadline, since the command in flight has one. A queued
+     * connection supersedes queued connections to every other device.
+     */
+    private void enqueue(Request request, int state, long now) {
+        if (request.isConnect) {
+            for (Request queued : mQueue.toArray(new Request[mQueue.size()])) {
+                if (queued.isConnect && (queued != request)) {
+                    mSupersededCount++;
+                    finish(queued, STATE_IDLE, REASON_SUPERSEDED, now);
+                }
+            }
+        }
+
+        if (!request.isQueued) {
+            request.isQueued = true;
+            request.queuedTime = now;
+            mQueue.add(request);
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+        }
+
+        setState(request, state, -1);
+    }
+
+    /**
+     * Sends queued requests in order until one of them puts a command in
+     * flight.
+     */
+    private void issueQueued(long now) {
+        while (!mQueue.isEmpty() && canIssue(mQueue.get(0))) {
+            final Request request = mQueue.remove(0);
+            request.isQueued = false;
+            mQueueWaits.record(now - request.queuedTime);
+
+            advance(request, now);
+        }
+    }
+
+    /**
+     * Returns whether a request may send its command now. Commands wait for
+     * the commands in flight, except that commands in the same batch go
+     * together, and a disconnect abandons a connection attempt to the same
+     * device instead of waiting for it.
+     */
+    private boolean canIssue(Request request) {
+        for (Command command : mInFlight) {
+            final boolean isSameBatch = (request.batch != null) && (command.batch == request.batch);
+            final boolean isAbandoned = !request.isConnect && command.isConnect
+                    && (command.deviceId == request.deviceId);
+            if (!isSameBatch && !isAbandoned) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void issued(long deviceId, boolean isConnect, Batch batch, long deadline) {
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            if (mInFlight.get(i).deviceId == deviceId) {
+                mInFlight.remove(i);
+            }
+        }
+
+        mInFlight.add(new Command(deviceId, isConnect, batch, deadline));
+        mIssuedCount++;
+    }
+
+    /**
+     * Abandons a connection attempt by disconnecting the device. The
+     * disconnect takes the place of the command in flight.
+     */
+    private void abort(long deviceId, long now) {
+        for (Command command : mInFlight) {
+            if (command.deviceId != deviceId) {
+                // Let the other command finish; the attempt will be retried.
+                return;
+            }
+        }
+
+        mInFlight.clear();
+
+        if (mBackend.disconnect(deviceId)) {
+            issued(deviceId, false, null, now + mDisconnectTimeout);
+        }
+    }
+
+    /**
+     * @return The index of the matching command in flight, or -1.
+     */
+    private int findInFlight(long deviceId, boolean isConnect) {
+        for (int i = 0; i < mInFlight.size(); i++) {
+            final Command command = mInFlight.get(i);
+            if ((command.deviceId == deviceId) && (command.isConnect == isConnect)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Replaces the request for a device with a new request. A replaced
+     * request in a batch counts as failed.
+     */
+    private void replace(Request existing, Request request, long now) {
+        if ((existing != null) && existing.isQueued) {
+            existing.isQueued = false;
+            mQueue.remove(existing);
+        }
+
+        if (existing != null) {
+            countBatchResult(existing, false, now);
+        }
+
+        mRequests.put(request.deviceId, request);
+        mSubmittedCount++;
+    }
+
+    /**
+     * Schedules another attempt after a backoff delay, or fails the request if
+     * it has run out of attempts.
+     */
+    private void retry(Request request, int state, int reason, long now) {
+        request.reason = reason;
+
+        if ((request.attempt + 1) >= mMaxAttempts) {
+            finish(request, STATE_FAILED, reason, now);
+            return;
+        }
+
+        final long backoff = Math.min(mMaxBackoff, mInitialBackoff << Math.min(request.attempt, 30));
+
+        request.attempt++;
+        request.isWaitingToRetry = true;
+        mRetryCount++;
+
+        setState(request, state, now + backoff);
+    }
+
+    private void setState(Request request, int state, long deadline) {
+        final int previousState = request.state;
+
+        request.state = state;
+        request.deadline = deadline;
+
+        if ((previousState != state) && (mListener != null)) {
+            mListener.onRequestStateChanged(request.deviceId, request.isConnect, state,
+                    request.reason);
+        }
+    }
+
+    /**
+     * Moves a request to a final state. Idle requests are forgotten; connected
+     * and failed requests are kept so that their state can be queried.
+     */
+    private void finish(Request request, int state, int reason, long now) {
+        final int previousState = request.state;
+
+        if (state == STATE_FAILED) {
+            mFailedCount++;
+        } else if ((state == STATE_CONNECTED)
+                || ((state == STATE_IDLE) && !request.isConnect && (reason == REASON_NONE))) {
+            mSucceededCount++;
+        }
+
+        request.state = state;
+        request.reason = reason;
+        request.deadline = -1;
+        request.isWaitingToRetry = false;
+
+        if (request.isQueued) {
+            request.isQueued = false;
+            mQueue.remove(request);
+        }
+
+        if (state == STATE_IDLE) {
+            mRequests.remove(request.deviceId);
+        }
+
+        if (((previousState != state) || (reason != REASON_NONE)) && (mListener != null)) {
+            mListener.onRequestStateChanged(request.deviceId, request.isConnect, state, reason);
+        }
+
+        countBatchResult(request, (state == STATE_IDLE) && (reason == REASON_NONE), now);
+    }
+
+    private void countBatchResult(Request request, boolean succeeded, long now) {
+        final Batch batch = request.batch;
+        if ((batch == null) || request.isCounted) {
+            return;
+        }
+
+        request.isCounted = true;
+
+        if (succeeded) {
+            batch.succeeded++;
+        } else {
+            batch.failed++;
+        }
+
+        if (--batch.remaining == 0) {
+            finishBatch(batch, now);
+        }
+    }
+
+    private void finishBatch(Batch batch, long now) {
+        if (mListener != null) {
+            mListener.onBatchFinished(batch.id, batch.succeeded, batch.failed,
+                    now - batch.startTime);
+        }
+    }
+
+    /**
+     * Sends queued requests if nothing is in flight, then updates the
+     * deadline. Called at the end of every public method that changes state.
+     */
+    private void update(long now) {
+        issueQueued(now);
+        updateDeadline();
+    }
+
+    private void updateDeadline() {
+        long deadline = -1;
+        for (Command command : mInFlight) {
+            if ((deadline < 0) || (command.deadline < deadline)) {
+                deadline = command.deadline;
+            }
+        }
+
+        for (Request request : mRequests.values()) {
+            if ((request.deadline >= 0) && ((deadline < 0) || (request.deadline < deadline))) {
+                deadline = request.deadline;
+            }
+        }
+
+        if (deadline != mScheduledDeadline) {
+            mScheduledDeadline = deadline;
+            mBackend.scheduleDeadline(deadline);
+        }
+    }
+
+    /**
+     * @return A copy of the requests, so that they can be modified while
+     *         iterating.
+     */
+    private Request[] snapshot() {
+        return mRequests.values().toArray(new Request[mRequests.size()]);
+    }
+
+    private static boolean isConnected(int state) {
+        return (state == BluetoothA2dpStates.STATE_CONNECTED)
+                || (state == BluetoothA2dpStates.STATE_PLAYING);
+    }
+
+    private static class Request {
+        final long deviceId;
+        final boolean isConnect;
+
+        int state = STATE_IDLE;
+        int reason = REASON_NONE;
+        int attempt;
+
+        /** Time of the next deadline or retry, or -1 if there is none. */
+        long deadline = -1;
+        boolean isWaitingToRetry;
+
+        /** Whether the request is waiting for the command in flight. */
+        boolean isQueued;
+        long queuedTime;
+
+        /** The batch this request belongs to, or {@code null}. */
+        Batch batch;
+
+        /** Whether the result has been counted towards the batch. */
+        boolean isCounted;
+
+        Request(long deviceId, boolean isConnect) {
+            this.deviceId = deviceId;
+            this.isConnect = isConnect;
+        }
+    }
+
+    /**
+     * A command sent to the audio service that hasn't reached a terminal
+     * state. It may outlive the request that sent it.
+     */
+    private static class Command {
+        final long deviceId;
+        final boolean isConnect;
+        final Batch batch;
+        final long deadline;
+
+        Command(long deviceId, boolean isConnect, Batch batch, long deadline) {
+            this.deviceId = deviceId;
+            this.isConnect = isConnect;
+            this.batch = batch;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Batch {
+        final int id;
+        final long startTime;
+
+        int remaining;
+        int succeeded;
+        int failed;
+
+        Batch(int id, long startTime) {
+            this.id = id;
+            this.startTime = startTime;
+        }
+    }
+}
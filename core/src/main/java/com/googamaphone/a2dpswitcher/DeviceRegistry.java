@@ -0,0 +1,351 @@
+package com.googamaphone.a2dpswitcher;
+
+/**
+ * Per-device settings and state, keyed by 64-bit device ID.
+ * <p>
+ * Entries are stored densely so that they can be iterated by index, similar
+ * to {@code SparseArray}. Lookups by device ID go through an
+ * open-addressing hash table and do not box or allocate.
+ * </p>
+ * Entries that no longer hold any information are removed automatically.
+ * Device ID 0 is reserved for invalid addresses: lookups return defaults and
+ * modifications are ignored.
+ */
+public class DeviceRegistry {
+    /** The state reported for devices without an entry. */
+    public static final int STATE_DEFAULT = 0;
+
+    /** The RSSI reported for devices that have not been seen. */
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private static final int FLAG_HIDDEN = 0x1;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] mKeys;
+    private String[] mNames;
+    private int[] mFlags;
+    private int[] mStates;
+    private long[] mLastSeen;
+    private short[] mRssi;
+    private int mSize;
+
+    /** Hash table of dense index + 1, or 0 for an empty slot. */
+    private int[] mTable;
+
+    public DeviceRegistry() {
+        allocate(INITIAL_CAPACITY);
+        mTable = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * @return The number of devices in the registry.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the index of the entry for a device, or -1 if the registry does
+     * not contain the device.
+     *
+     * @param deviceId The device ID.
+     * @return The index of the entry, or -1.
+     */
+    public int indexOfKey(long deviceId) {
+        if (deviceId == 0) {
+            return -1;
+        }
+
+        return mTable[findSlot(deviceId)] - 1;
+    }
+
+    public boolean contains(long deviceId) {
+        return (indexOfKey(deviceId) >= 0);
+    }
+
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    public String nameAt(int index) {
+        return mNames[index];
+    }
+
+    public boolean isHiddenAt(int index) {
+        return ((mFlags[index] & FLAG_HIDDEN) != 0);
+    }
+
+    public int stateAt(int index) {
+        return mStates[index];
+    }
+
+    public long lastSeenAt(int index) {
+        return mLastSeen[index];
+    }
+
+    public short rssiAt(int index) {
+        return mRssi[index];
+    }
+
+    /**
+     * Returns the custom name for a device, or {@code null} if the device does
+     * not have a custom name.
+     */
+    public String getName(long deviceId) {
+        final int index = indexOfKey(deviceId);
+        return (index >= 0) ? mNames[index] : null;
+    }
+
+    /**
+     * Sets the custom name for a device. Pass {@code null} to clear it.
+     */
+    public void setName(long deviceId, String name) {
+        if (name != null) {
+            final int index = obtainIndex(deviceId);
+            if (index >= 0) {
+                mNames[index] = name;
+            }
+        } else {
+            final int index = indexOfKey(deviceId);
+            if (index >= 0) {
+                mNames[index] = null;
+                removeIfEmpty(index);
+            }
+        }
+    }
+
+    public boolean isHidden(long deviceId) {
+        final int index = indexOfKey(deviceId);
+        return (index >= 0) && isHiddenAt(index);
+    }
+
+    public void setHidden(long deviceId, boolean hidden) {
+        if (hidden) {
+            final int index = obtainIndex(deviceId);
+            if (index >= 0) {
+                mFlags[index] |= FLAG_HIDDEN;
+            }
+        } else {
+            final int index = indexOfKey(deviceId);
+            if (index >= 0) {
+                mFlags[index] &= ~FLAG_HIDDEN;
+                removeIfEmpty(index);
+            }
+        }
+    }
+
+    /**
+     * Returns the last known connection state for a device, or
+     * {@link #STATE_DEFAULT} if it is not known.
+     */
+    public int getState(long deviceId) {
+        final int index = indexOfKey(deviceId);
+        return (index >= 0) ? mStates[index] : STATE_DEFAULT;
+    }
+
+    public void setState(long deviceId, int state) {
+        if (state != STATE_DEFAULT) {
+            final int index = obtainIndex(deviceId);
+            if (index >= 0) {
+                mStates[index] = state;
+            }
+        } else {
+            final int index = indexOfKey(deviceId);
+            if (index >= 0) {
+                mStates[index] = STATE_DEFAULT;
+                removeIfEmpty(index);
+            }
+        }
+    }
+
+    /**
+     * Resets the connection state of every device to {@link #STATE_DEFAULT}.
+     */
+    public void clearStates() {
+        for (int i = mSize - 1; i >= 0; i--) {
+            mStates[i] = STATE_DEFAULT;
+            removeIfEmpty(i);
+        }
+    }
+
+    /**
+     * Returns the time at which a device was last seen, or 0 if it has not
+     * been seen.
+     */
+    public long getLastSeen(long deviceId) {
+        final int index = indexOfKey(deviceId);
+        return (index >= 0) ? mLastSeen[index] : 0;
+    }
+
+    /**
+     * Returns the signal strength of a device when it was last seen, or
+     * {@link #RSSI_UNKNOWN} if it has not been seen.
+     */
+    public short getRssi(long deviceId) {
+        final int index = indexOfKey(deviceId);
+        return (index >= 0) ? mRssi[index] : RSSI_UNKNOWN;
+    }
+
+    /**
+     * Records that a device was seen.
+     *
+     * @param deviceId The device ID.
+     * @param time The time at which the device was seen.
+     * @param rssi The signal strength, or {@link #RSSI_UNKNOWN}.
+     */
+    public void setSighting(long deviceId, long time, short rssi) {
+        final int index = obtainIndex(deviceId);
+        if (index >= 0) {
+            mLastSeen[index] = time;
+            mRssi[index] = rssi;
+        }
+    }
+
+    /**
+     * Removes the entry for a device.
+     */
+    public void remove(long deviceId) {
+        final int index = indexOfKey(deviceId);
+        if (index >= 0) {
+            removeAt(index);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mNames[i] = null;
+        }
+
+        mSize = 0;
+
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = 0;
+        }
+    }
+
+    private void removeIfEmpty(int index) {
+        if ((mNames[index] == null) && (mFlags[index] == 0) && (mStates[index] == STATE_DEFAULT)
+                && (mLastSeen[index] == 0)) {
+            removeAt(index);
+        }
+    }
+
+    /**
+     * Returns the index of the entry for a device, creating it if necessary.
+     *
+     * @param deviceId The device ID.
+     * @return The index of the entry, or -1 if the device ID is invalid.
+     */
+    private int obtainIndex(long deviceId) {
+        if (deviceId == 0) {
+            return -1;
+        }
+
+        int slot = findSlot(deviceId);
+        if (mTable[slot] != 0) {
+            return mTable[slot] - 1;
+        }
+
+        if (mSize == mKeys.length) {
+            // The table is always twice the dense capacity, so this also
+            // keeps the load factor at or below one half.
+            grow();
+            slot = findSlot(deviceId);
+        }
+
+        final int index = mSize++;
+        mKeys[index] = deviceId;
+        mNames[index] = null;
+        mFlags[index] = 0;
+        mStates[index] = STATE_DEFAULT;
+        mLastSeen[index] = 0;
+        mRssi[index] = RSSI_UNKNOWN;
+        mTable[slot] = index + 1;
+
+        return index;
+    }
+
+    private void removeAt(int index) {
+        final int mask = mTable.length - 1;
+
+        // Remove the entry from the hash table using backward-shift deletion,
+        // which keeps every probe sequence intact without tombstones.
+        int hole = findSlot(mKeys[index]);
+        int next = (hole + 1) & mask;
+        while (mTable[next] != 0) {
+            final int ideal = hash(mKeys[mTable[next] - 1]) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                mTable[hole] = mTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mTable[hole] = 0;
+
+        // Move the last entry into the vacated index.
+        final int last = mSize - 1;
+        if (index != last) {
+            mTable[findSlot(mKeys[last])] = index + 1;
+            mKeys[index] = mKeys[last];
+            mNames[index] = mNames[last];
+            mFlags[index] = mFlags[last];
+            mStates[index] = mStates[last];
+            mLastSeen[index] = mLastSeen[last];
+            mRssi[index] = mRssi[last];
+        }
+
+        mNames[last] = null;
+        mSize = last;
+    }
+
+    private int findSlot(long deviceId) {
+        final int mask = mTable.length - 1;
+        int slot = hash(deviceId) & mask;
+
+        while (true) {
+            final int entry = mTable[slot];
+            if ((entry == 0) || (mKeys[entry - 1] == deviceId)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        final long[] keys = mKeys;
+        final String[] names = mNames;
+        final int[] flags = mFlags;
+        final int[] states = mStates;
+        final long[] lastSeen = mLastSeen;
+        final short[] rssi = mRssi;
+
+        allocate(keys.length * 2);
+        System.arraycopy(keys, 0, mKeys, 0, mSize);
+        System.arraycopy(names, 0, mNames, 0, mSize);
+        System.arraycopy(flags, 0, mFlags, 0, mSize);
+        System.arraycopy(states, 0, mStates, 0, mSize);
+        System.arraycopy(lastSeen, 0, mLastSeen, 0, mSize);
+        System.arraycopy(rssi, 0, mRssi, 0, mSize);
+
+        mTable = new int[mKeys.length * 2];
+        for (int i = 0; i < mSize; i++) {
+            mTable[findSlot(mKeys[i])] = i + 1;
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mNames = new String[capacity];
+        mFlags = new int[capacity];
+        mStates = new int[capacity];
+        mLastSeen = new long[capacity];
+        mRssi = new short[capacity];
+    }
+
+    private static int hash(long deviceId) {
+        // Mix the bits so that sequential addresses spread across the table.
+        long h = deviceId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,213 @@
+package com.googamaphone.a2dpswitcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary on-disk format for the persistent parts of a {@link DeviceRegistry}.
+ * <p>
+ * The file is laid out as follows, using big-endian integers:
+ * <pre>
+ * int     magic, "A2DR"
+ * short   version
+ * int     record count
+ * records {
+ *     long    device ID
+ *     byte    flags
+ *     int     custom name length in bytes, only present if FLAG_HAS_NAME is set
+ *     bytes   custom name in UTF-8, only present if FLAG_HAS_NAME is set
+ * }
+ * long    CRC32 of every preceding byte
+ * </pre>
+ * Records are variable-width, since names are. Version 1 files wrote names
+ * with {@link DataOutputStream#writeUTF(String)}, which limits them to 65535
+ * bytes; they are still read, and are rewritten in the current version the
+ * next time the registry is saved.
+ * </p>
+ */
+public class DeviceRegistryFile {
+    /** Name of the registry file within the app's files directory. */
+    public static final String FILE_NAME = "devices.bin";
+
+    private static final int MAGIC = 0x41324452;
+    private static final short VERSION = 2;
+
+    /** Version that wrote names with {@link DataOutputStream#writeUTF(String)}. */
+    private static final short VERSION_MODIFIED_UTF8 = 1;
+
+    private static final int FLAG_HIDDEN = 0x1;
+    private static final int FLAG_HAS_NAME = 0x2;
+
+    /** Size of the header: magic, version and record count. */
+    private static final int HEADER_SIZE = 4 + 2 + 4;
+
+    /** Size of the trailing checksum. */
+    private static final int CHECKSUM_SIZE = 8;
+
+    /**
+     * Encodes the custom names and hidden flags in a registry. Other state is
+     * transient and is not written.
+     *
+     * @param registry The registry to encode.
+     * @return The encoded file contents.
+     */
+    public static byte[] encode(DeviceRegistry registry) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                HEADER_SIZE + (registry.size() * 32) + CHECKSUM_SIZE);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        int count = 0;
+        for (int i = 0; i < registry.size(); i++) {
+            if ((registry.nameAt(i) != null) || registry.isHiddenAt(i)) {
+                count++;
+            }
+        }
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(count);
+
+            for (int i = 0; i < registry.size(); i++) {
+                final String name = registry.nameAt(i);
+                final boolean hidden = registry.isHiddenAt(i);
+                if ((name == null) && !hidden) {
+                    continue;
+                }
+
+                int flags = 0;
+                if (hidden) {
+                    flags |= FLAG_HIDDEN;
+                }
+                if (name != null) {
+                    flags |= FLAG_HAS_NAME;
+                }
+
+                out.writeLong(registry.keyAt(i));
+                out.writeByte(flags);
+
+                if (name != null) {
+                    final byte[] nameBytes = name.getBytes("UTF-8");
+                    out.writeInt(nameBytes.length);
+                    out.write(nameBytes);
+                }
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray(), 0, bytes.size());
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            // Writing to a byte array never fails.
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes file contents into a registry.
+     *
+     * @param data The file contents.
+     * @param registry The registry to populate.
+     * @throws IOException if the data is truncated, corrupt or of an unknown
+     *             version.
+     */
+    public static void decode(byte[] data, DeviceRegistry registry) throws IOException {
+        if (data.length < (HEADER_SIZE + CHECKSUM_SIZE)) {
+            throw new IOException("Truncated device registry");
+        }
+
+        final int length = data.length - CHECKSUM_SIZE;
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(length);
+        if (in.readLong() != crc.getValue()) {
+            throw new IOException("Device registry checksum mismatch");
+        }
+
+        final DataInputStream records = new DataInputStream(
+                new ByteArrayInputStream(data, 0, length));
+        if (records.readInt() != MAGIC) {
+            throw new IOException("Not a device registry");
+        }
+
+        final short version = records.readShort();
+        if ((version != VERSION) && (version != VERSION_MODIFIED_UTF8)) {
+            throw new IOException("Unsupported device registry version " + version);
+        }
+
+        final int count = records.readInt();
+        for (int i = 0; i < count; i++) {
+            final long deviceId = records.readLong();
+            final int flags = records.readUnsignedByte();
+
+            if ((flags & FLAG_HAS_NAME) != 0) {
+                if (version == VERSION_MODIFIED_UTF8) {
+                    registry.setName(deviceId, records.readUTF());
+                } else {
+                    registry.setName(deviceId, readName(records, length));
+                }
+            }
+
+            if ((flags & FLAG_HIDDEN) != 0) {
+                registry.setHidden(deviceId, true);
+            }
+        }
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 name.
+     *
+     * @param in The stream to read from.
+     * @param limit The size of the data, used to reject corrupt lengths
+     *            before allocating.
+     */
+    private static String readName(DataInputStream in, int limit) throws IOException {
+        final int length = in.readInt();
+        if ((length < 0) || (length > limit)) {
+            throw new IOException("Invalid name length " + length);
+        }
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads an entire stream into a byte array.
+     *
+     * @param in The stream to read.
+     * @param sizeHint The expected size of the stream, or 0 if unknown.
+     * @return The contents of the stream.
+     * @throws IOException if the stream could not be read.
+     */
+    public static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(sizeHint, 256));
+        final byte[] buffer = new byte[Math.max(Math.min(sizeHint, 8192), 256)];
+
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private DeviceRegistryFile() {
+        // This class is non-instantiable.
+    }
+}
@@ -0,0 +1,205 @@
+package com.googamaphone.a2dpswitcher;
+
+import com.googamaphone.utils.BluetoothAddress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Parses the device URIs written to NFC tags, without depending on
+ * {@code android.net.Uri}.
+ * <p/>
+ * Version 0 URIs carry the address as the path, e.g.
+ * "a2dp://connect/00:43:A8:23:10:F0". Version 1 URIs carry the address and an
+ * optional name as query parameters, e.g.
+ * "a2dp://connect?version=1&address=00:43:A8:23:10:F0&name=Car".
+ */
+public class DeviceUri {
+    public static final String QUERY_NAME = "name";
+    public static final String QUERY_ADDRESS = "address";
+    public static final String QUERY_VERSION = "version";
+
+    private final String mAddress;
+    private final String mName;
+
+    private DeviceUri(String address, String name) {
+        mAddress = address;
+        mName = name;
+    }
+
+    /**
+     * @return The device address, e.g. "00:43:A8:23:10:F0".
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return The device name, or {@code null} if the URI doesn't specify one.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Parses the device address and name from a URI.
+     *
+     * @param uri The URI to parse, in its encoded form.
+     * @return The parsed URI, or {@code null} if it is invalid or has an
+     *         unknown version.
+     */
+    public static DeviceUri parse(String uri) {
+        if (uri == null) {
+            return null;
+        }
+
+        final int fragmentStart = uri.indexOf('#');
+        final int end = (fragmentStart >= 0) ? fragmentStart : uri.length();
+        final int queryStart = uri.indexOf('?');
+        final boolean hasQuery = (queryStart >= 0) && (queryStart < end);
+        final String query = hasQuery ? uri.substring(queryStart + 1, end) : null;
+
+        final String version = getQueryParameter(query, QUERY_VERSION);
+        if (version == null) {
+            return parseVersion0(uri, hasQuery ? queryStart : end);
+        }
+
+        try {
+            final int versionCode = Integer.parseInt(version);
+            if (versionCode == 1) {
+                return parseVersion1(query);
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+
+        // Invalid version.
+        return null;
+    }
+
+    private static DeviceUri parseVersion0(String uri, int end) {
+        final int schemeEnd = uri.indexOf(':');
+        if ((schemeEnd < 0) || !uri.startsWith("//", schemeEnd + 1)) {
+            // Missing authority, so there is no path.
+            return null;
+        }
+
+        final int pathStart = uri.indexOf('/', schemeEnd + 3);
+        if ((pathStart < 0) || (pathStart >= end - 1)) {
+            // Missing address.
+            return null;
+        }
+
+        final String address = decode(uri.substring(pathStart + 1, end), false);
+        if (!BluetoothAddress.isValid(address)) {
+            // Invalid address.
+            return null;
+        }
+
+        return new DeviceUri(address, null);
+    }
+
+    private static DeviceUri parseVersion1(String query) {
+        final String address = getQueryParameter(query, QUERY_ADDRESS);
+        if (!BluetoothAddress.isValid(address)) {
+            // Invalid or missing address.
+            return null;
+        }
+
+        final String name = getQueryParameter(query, QUERY_NAME);
+
+        return new DeviceUri(address, name);
+    }
+
+    /**
+     * Returns the decoded value of the first query parameter with the given
+     * name, or {@code null} if there isn't one.
+     */
+    private static String getQueryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+
+        final int length = query.length();
+        int start = 0;
+
+        while (start <= length) {
+            int next = query.indexOf('&', start);
+            if (next < 0) {
+                next = length;
+            }
+
+            int separator = query.indexOf('=', start);
+            if ((separator < 0) || (separator > next)) {
+                separator = next;
+            }
+
+            if (((separator - start) == name.length())
+                    && query.regionMatches(start, name, 0, name.length())) {
+                if (separator == next) {
+                    return "";
+                }
+
+                return decode(query.substring(separator + 1, next), true);
+            }
+
+            start = next + 1;
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes percent-escaped UTF-8. Malformed escapes are left as-is.
+     */
+    private static String decode(String value, boolean plusAsSpace) {
+        if ((value.indexOf('%') < 0) && (!plusAsSpace || (value.indexOf('+') < 0))) {
+            return value;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+        final StringBuilder result = new StringBuilder(value.length());
+        final int length = value.length();
+
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+
+            if ((c == '%') && (i + 2 < length)) {
+                final int high = Character.digit(value.charAt(i + 1), 16);
+                final int low = Character.digit(value.charAt(i + 2), 16);
+                if ((high >= 0) && (low >= 0)) {
+                    bytes.write((high << 4) | low);
+                    i += 2;
+                    continue;
+                }
+            }
+
+            flushBytes(bytes, result);
+
+            if (plusAsSpace && (c == '+')) {
+                result.append(' ');
+            } else {
+                result.append(c);
+            }
+        }
+
+        flushBytes(bytes, result);
+
+        return result.toString();
+    }
+
+    private static void flushBytes(ByteArrayOutputStream bytes, StringBuilder result) {
+        if (bytes.size() == 0) {
+            return;
+        }
+
+        try {
+            result.append(bytes.toString("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+
+        bytes.reset();
+    }
+}
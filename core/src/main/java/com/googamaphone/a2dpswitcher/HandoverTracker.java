@@ -0,0 +1,301 @@
+package com.googamaphone.a2dpswitcher;
+
+import com.googamaphone.compat.BluetoothA2dpStates;
+import com.googamaphone.utils.DumpFormatter;
+import com.googamaphone.utils.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the audio gap when switching from one sink to another, and keeps
+ * track of which devices have recently been seen nearby.
+ * <p/>
+ * The gap runs from the moment the old sink stops being able to carry audio,
+ * i.e. leaves the connected or playing state, to the moment the new sink
+ * reaches either of those states. This is the time during which audio has
+ * nowhere to go, so it is a lower bound on what the user hears. If the new
+ * sink connects before the old one drops, the gap is 0. Switches are only
+ * measured if the old sink was connected when the switch started.
+ * <p/>
+ * Only one switch is measured at a time; starting another replaces it. Times
+ * must come from a single monotonic clock.
+ */
+public class HandoverTracker {
+    /** The platform disconnects the old sink before connecting the new one. */
+    public static final int MODE_NORMAL = 0;
+
+    /** The new sink was pre-warmed and connected before the old one dropped. */
+    public static final int MODE_HANDOVER = 1;
+
+    private static final String[] MODE_NAMES = {
+            "normal", "handover"
+    };
+
+    /** The new sink is ready for a handover. */
+    public static final int PREWARM_READY = 0;
+
+    /** The new sink is not bonded. */
+    public static final int PREWARM_NOT_BONDED = 1;
+
+    /** The new sink hasn't been seen nearby recently. */
+    public static final int PREWARM_NOT_PRESENT = 2;
+
+    /** The audio proxy is not available. */
+    public static final int PREWARM_NO_PROXY = 3;
+
+    private static final String[] PREWARM_NAMES = {
+            "ready", "notBonded", "notPresent", "noProxy"
+    };
+
+    /** Time in milliseconds for which a discovered device counts as nearby. */
+    private static final long PRESENCE_TIMEOUT = 120000;
+
+    /** Switches that don't finish within this many milliseconds are dropped. */
+    private static final long HANDOVER_TIMEOUT = 60000;
+
+    /** Maximum number of devices with their own presence and histograms. */
+    private static final int MAX_TRACKED_DEVICES = 32;
+
+    /** Time at which each device was last seen, or -1 if it has a link. */
+    private final HashMap<Long, Long> mLastSeen = new HashMap<Long, Long>();
+
+    /** Audio gap per mode, for every device. */
+    private final LatencyHistogram[] mModeGaps = new LatencyHistogram[MODE_NAMES.length];
+
+    /** Audio gap per mode, keyed by the device that was switched to. */
+    private final HashMap<Long, LatencyHistogram[]> mDeviceGaps =
+            new HashMap<Long, LatencyHistogram[]>();
+
+    private final int[] mPrewarmCounts = new int[PREWARM_NAMES.length];
+
+    /** The switch being measured, or {@code null}. */
+    private Handover mHandover;
+
+    private int mStartedCount;
+    private int mMeasuredCount;
+    private int mFailedCount;
+    private int mTimedOutCount;
+
+    public HandoverTracker() {
+        for (int i = 0; i < mModeGaps.length; i++) {
+            mModeGaps[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records that a device was found by discovery.
+     *
+     * @param deviceId The device ID.
+     * @param time The time at which the device was found.
+     */
+    public void onDeviceFound(long deviceId, long time) {
+        final Long lastSeen = mLastSeen.get(deviceId);
+        if ((lastSeen != null) && (lastSeen < 0)) {
+            // A device with a link stays present until the link drops.
+            return;
+        }
+
+        putLastSeen(deviceId, time);
+    }
+
+    /**
+     * Records that a device established or lost a low-level link, e.g. because
+     * it connected to another profile.
+     *
+     * @param deviceId The device ID.
+     * @param connected {@code true} if the link was established.
+     * @param time The time at which the link changed.
+     */
+    public void onLinkChanged(long deviceId, boolean connected, long time) {
+        if (connected) {
+            putLastSeen(deviceId, -1);
+        } else {
+            // The device may have gone out of range.
+            mLastSeen.remove(deviceId);
+        }
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @param time The current time.
+     * @return {@code true} if the device has a link or was found by discovery
+     *         recently.
+     */
+    public boolean isPresent(long deviceId, long time) {
+        final Long lastSeen = mLastSeen.get(deviceId);
+        if (lastSeen == null) {
+            return false;
+        }
+
+        return (lastSeen < 0) || ((time - lastSeen) <= PRESENCE_TIMEOUT);
+    }
+
+    /**
+     * Records the result of pre-warming a device for a handover.
+     *
+     * @param result The result, e.g. {@link #PREWARM_READY}.
+     */
+    public void recordPrewarm(int result) {
+        mPrewarmCounts[result]++;
+    }
+
+    /**
+     * Starts measuring a switch, replacing any switch being measured.
+     *
+     * @param fromId The device being switched from.
+     * @param fromState The connection state of that device.
+     * @param toId The device being switched to.
+     * @param mode The switching mode, e.g. {@link #MODE_HANDOVER}.
+     * @param time The time of the request.
+     */
+    public void begin(long fromId, int fromState, long toId, int mode, long time) {
+        if (!carriesAudio(fromState)) {
+            // There's no audio to interrupt.
+            mHandover = null;
+            return;
+        }
+
+        mHandover = new Handover(fromId, toId, mode, time);
+        mStartedCount++;
+    }
+
+    /**
+     * Updates the switch being measured with a connection state change.
+     *
+     * @param deviceId The device ID.
+     * @param state The new connection state.
+     * @param time The time of the change.
+     */
+    public void onConnectionStateChanged(long deviceId, int state, long time) {
+        final Handover handover = mHandover;
+        if (handover == null) {
+            return;
+        }
+
+        if ((time - handover.startTime) > HANDOVER_TIMEOUT) {
+            mHandover = null;
+            mTimedOutCount++;
+            return;
+        }
+
+        if (deviceId == handover.fromId) {
+            if (!carriesAudio(state) && (handover.gapStartTime < 0)) {
+                handover.gapStartTime = time;
+            }
+        } else if (deviceId == handover.toId) {
+            if (carriesAudio(state)) {
+                final long gap = (handover.gapStartTime < 0) ? 0 : (time - handover.gapStartTime);
+                mModeGaps[handover.mode].record(gap);
+                obtainDeviceGaps(deviceId)[handover.mode].record(gap);
+                mHandover = null;
+                mMeasuredCount++;
+            } else if (state == BluetoothA2dpStates.STATE_DISCONNECTED) {
+                mHandover = null;
+                mFailedCount++;
+            }
+        }
+    }
+
+    /**
+     * @param mode The switching mode, e.g. {@link #MODE_HANDOVER}.
+     * @return The audio gap for every device in that mode.
+     */
+    public LatencyHistogram getGaps(int mode) {
+        return mModeGaps[mode];
+    }
+
+    /**
+     * @param deviceId The device that was switched to.
+     * @param mode The switching mode, e.g. {@link #MODE_HANDOVER}.
+     * @return The audio gap for the device in that mode, or {@code null} if no
+     *         switches to the device have been measured.
+     */
+    public LatencyHistogram getDeviceGaps(long deviceId, int mode) {
+        final LatencyHistogram[] gaps = mDeviceGaps.get(deviceId);
+        return (gaps != null) ? gaps[mode] : null;
+    }
+
+    /**
+     * Writes all histograms and counters to the current dump section.
+     *
+     * @param dump The formatter to write to.
+     */
+    public void dump(DumpFormatter dump) {
+        dump.field("started", mStartedCount);
+        dump.field("measured", mMeasuredCount);
+        dump.field("failed", mFailedCount);
+        dump.field("timedOut", mTimedOutCount);
+        dump.field("active", mHandover != null);
+        dump.field("present", mLastSeen.size());
+
+        for (int i = 0; i < mPrewarmCounts.length; i++) {
+            dump.field("prewarm." + PREWARM_NAMES[i], mPrewarmCounts[i]);
+        }
+
+        for (int i = 0; i < mModeGaps.length; i++) {
+            dump.histogram("gap." + MODE_NAMES[i], mModeGaps[i]);
+        }
+
+        for (Map.Entry<Long, LatencyHistogram[]> entry : mDeviceGaps.entrySet()) {
+            final String device = String.format("%012X", entry.getKey());
+            final LatencyHistogram[] gaps = entry.getValue();
+            for (int i = 0; i < gaps.length; i++) {
+                if (gaps[i].getCount() > 0) {
+                    dump.histogram("device." + device + "." + MODE_NAMES[i], gaps[i]);
+                }
+            }
+        }
+    }
+
+    private void putLastSeen(long deviceId, long time) {
+        if (!mLastSeen.containsKey(deviceId) && (mLastSeen.size() >= MAX_TRACKED_DEVICES)) {
+            // Forget an arbitrary device to keep memory bounded.
+            mLastSeen.remove(mLastSeen.keySet().iterator().next());
+        }
+
+        mLastSeen.put(deviceId, time);
+    }
+
+    private LatencyHistogram[] obtainDeviceGaps(long deviceId) {
+        LatencyHistogram[] gaps = mDeviceGaps.get(deviceId);
+
+        if (gaps == null) {
+            if (mDeviceGaps.size() >= MAX_TRACKED_DEVICES) {
+                // Forget an arbitrary device to keep memory bounded.
+                mDeviceGaps.remove(mDeviceGaps.keySet().iterator().next());
+            }
+
+            gaps = new LatencyHistogram[MODE_NAMES.length];
+            for (int i = 0; i < gaps.length; i++) {
+                gaps[i] = new LatencyHistogram();
+            }
+
+            mDeviceGaps.put(deviceId, gaps);
+        }
+
+        return gaps;
+    }
+
+    private static boolean carriesAudio(int state) {
+        return (state == BluetoothA2dpStates.STATE_CONNECTED)
+                || (state == BluetoothA2dpStates.STATE_PLAYING);
+    }
+
+    private static class Handover {
+        final long fromId;
+        final long toId;
+        final int mode;
+        final long startTime;
+
+        /** Time at which the old sink stopped carrying audio, or -1. */
+        long gapStartTime = -1;
+
+        Handover(long fromId, long toId, int mode, long startTime) {
+            this.fromId = fromId;
+            this.toId = toId;
+            this.mode = mode;
+            this.startTime = startTime;
+        }
+    }
+}
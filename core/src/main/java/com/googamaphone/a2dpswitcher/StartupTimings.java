@@ -0,0 +1,103 @@
+package com.googamaphone.a2dpswitcher;
+
+/**
+ * Records when each stage of service startup finished, relative to the start
+ * of startup. All times are in milliseconds and must come from the same
+ * monotonic clock.
+ */
+public class StartupTimings {
+    /** The broadcast receiver was registered. */
+    public static final int STAGE_RECEIVER_REGISTERED = 0;
+
+    /**
+     * The initial notification was shown, using the warm-start snapshot if
+     * one was available.
+     */
+    public static final int STAGE_PLACEHOLDER_SHOWN = 1;
+
+    /** Settings were read from disk on the background thread. */
+    public static final int STAGE_SETTINGS_LOADED = 2;
+
+    /** Settings were merged into the service's state on the main thread. */
+    public static final int STAGE_SETTINGS_ADOPTED = 3;
+
+    /** The audio proxy was connected. */
+    public static final int STAGE_PROXY_CONNECTED = 4;
+
+    private static final String[] STAGE_NAMES = {
+            "receiver", "placeholder", "loaded", "adopted", "proxy"
+    };
+
+    private final long mStartTime;
+    private final long[] mElapsed = new long[STAGE_NAMES.length];
+
+    /**
+     * Constructs a new {@link StartupTimings}.
+     *
+     * @param startTime The time at which startup began.
+     */
+    public StartupTimings(long startTime) {
+        mStartTime = startTime;
+
+        for (int i = 0; i < mElapsed.length; i++) {
+            mElapsed[i] = -1;
+        }
+    }
+
+    /**
+     * Records the time at which a stage finished. Only the first time is kept.
+     *
+     * @param stage The stage that finished.
+     * @param time The time at which it finished.
+     */
+    public void mark(int stage, long time) {
+        if (mElapsed[stage] < 0) {
+            mElapsed[stage] = time - mStartTime;
+        }
+    }
+
+    /**
+     * @param stage The stage to query.
+     * @return The time between the start of startup and the end of the stage,
+     *         or -1 if the stage has not finished.
+     */
+    public long getElapsed(int stage) {
+        return mElapsed[stage];
+    }
+
+    /**
+     * @return {@code true} if every stage has finished.
+     */
+    public boolean isComplete() {
+        for (long elapsed : mElapsed) {
+            if (elapsed < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < mElapsed.length; i++) {
+            if (i > 0) {
+                result.append(' ');
+            }
+
+            result.append(STAGE_NAMES[i]);
+            result.append('=');
+
+            if (mElapsed[i] >= 0) {
+                result.append(mElapsed[i]);
+                result.append("ms");
+            } else {
+                result.append('-');
+            }
+        }
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,310 @@
+package com.googamaphone.a2dpswitcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+
+/**
+ * Bounded history of the devices the user switched to, used by
+ * {@link SwitchPredictor} to guess the next device.
+ * <p/>
+ * Each entry records the device, the device connected before it, the hour of
+ * the week at which it connected, and how long it stayed connected. Entries
+ * are kept in a ring buffer of {@link #MAX_ENTRIES}, so the oldest entries are
+ * dropped once the buffer is full. Indices run from the oldest entry to the
+ * newest.
+ * <p/>
+ * The binary format is laid out as follows, using big-endian integers:
+ * <pre>
+ * int     magic, "A2SH"
+ * short   version
+ * int     entry count
+ * entries {
+ *     long    device ID
+ *     long    previous device ID, or 0
+ *     byte    hour of week
+ *     int     duration in seconds, or DURATION_UNKNOWN
+ * }
+ * long    CRC32 of every preceding byte
+ * </pre>
+ */
+public class SwitchHistory {
+    /** Name of the history file within the app's files directory. */
+    public static final String FILE_NAME = "history.bin";
+
+    /** Maximum number of entries kept. */
+    public static final int MAX_ENTRIES = 256;
+
+    public static final int HOURS_PER_WEEK = 7 * 24;
+
+    /** Duration of an entry whose device hasn't disconnected yet. */
+    public static final int DURATION_UNKNOWN = -1;
+
+    private static final int MAGIC = 0x41325348;
+    private static final short VERSION = 1;
+
+    /** Size of the header: magic, version and entry count. */
+    private static final int HEADER_SIZE = 4 + 2 + 4;
+
+    /** Size of each entry. */
+    private static final int ENTRY_SIZE = 8 + 8 + 1 + 4;
+
+    /** Size of the trailing checksum. */
+    private static final int CHECKSUM_SIZE = 8;
+
+    private final long[] mDeviceIds = new long[MAX_ENTRIES];
+    private final long[] mPreviousIds = new long[MAX_ENTRIES];
+    private final byte[] mHoursOfWeek = new byte[MAX_ENTRIES];
+    private final int[] mDurations = new int[MAX_ENTRIES];
+
+    /** Position of the oldest entry in the ring buffer. */
+    private int mStart;
+    private int mSize;
+
+    /**
+     * Time at which the newest entry's device connected, or -1 if its
+     * duration is already known or it was loaded from disk.
+     */
+    private long mOpenTime = -1;
+
+    /**
+     * Returns the hour of the week for a calendar, from 0 at midnight on
+     * Sunday to {@link #HOURS_PER_WEEK} - 1.
+     *
+     * @param calendar The calendar, set to the time of interest.
+     * @return The hour of the week.
+     */
+    public static int getHourOfWeek(Calendar calendar) {
+        return ((calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * 24)
+                + calendar.get(Calendar.HOUR_OF_DAY);
+    }
+
+    /**
+     * Records that a device connected, ending the newest entry if its device
+     * hasn't disconnected yet.
+     *
+     * @param deviceId The device that connected.
+     * @param hourOfWeek The hour of the week at which it connected.
+     * @param time The time at which it connected, from a monotonic clock.
+     */
+    public void record(long deviceId, int hourOfWeek, long time) {
+        final long previousId = (mSize > 0) ? deviceIdAt(mSize - 1) : 0;
+        closeNewest(time);
+
+        final int position;
+        if (mSize < MAX_ENTRIES) {
+            position = (mStart + mSize) % MAX_ENTRIES;
+            mSize++;
+        } else {
+            // Overwrite the oldest entry.
+            position = mStart;
+            mStart = (mStart + 1) % MAX_ENTRIES;
+        }
+
+        mDeviceIds[position] = deviceId;
+        mPreviousIds[position] = previousId;
+        mHoursOfWeek[position] = (byte) hourOfWeek;
+        mDurations[position] = DURATION_UNKNOWN;
+        mOpenTime = time;
+    }
+
+    /**
+     * Records that a device disconnected, ending the newest entry if it
+     * belongs to the device.
+     *
+     * @param deviceId The device that disconnected.
+     * @param time The time at which it disconnected, from the same clock
+     *            passed to {@link #record}.
+     * @return {@code true} if an entry was ended.
+     */
+    public boolean onDisconnected(long deviceId, long time) {
+        if ((mSize == 0) || (deviceIdAt(mSize - 1) != deviceId)) {
+            return false;
+        }
+
+        return closeNewest(time);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long deviceIdAt(int index) {
+        return mDeviceIds[positionOf(index)];
+    }
+
+    /**
+     * @return The device connected before the entry's device, or 0 if none.
+     */
+    public long previousIdAt(int index) {
+        return mPreviousIds[positionOf(index)];
+    }
+
+    public int hourOfWeekAt(int index) {
+        return mHoursOfWeek[positionOf(index)] & 0xFF;
+    }
+
+    /**
+     * @return How long the entry's device stayed connected, in seconds, or
+     *         {@link #DURATION_UNKNOWN}.
+     */
+    public int durationAt(int index) {
+        return mDurations[positionOf(index)];
+    }
+
+    /**
+     * Inserts the entries of an older history before the entries in this one,
+     * dropping the oldest entries if there are too many.
+     *
+     * @param older The history to insert.
+     */
+    public void addOlder(SwitchHistory older) {
+        final int total = Math.min(older.mSize + mSize, MAX_ENTRIES);
+        final int skip = (older.mSize + mSize) - total;
+
+        final long[] deviceIds = new long[total];
+        final long[] previousIds = new long[total];
+        final byte[] hoursOfWeek = new byte[total];
+        final int[] durations = new int[total];
+
+        for (int i = skip; i < (older.mSize + mSize); i++) {
+            final SwitchHistory source = (i < older.mSize) ? older : this;
+            final int position = source.positionOf((i < older.mSize) ? i : (i - older.mSize));
+            deviceIds[i - skip] = source.mDeviceIds[position];
+            previousIds[i - skip] = source.mPreviousIds[position];
+            hoursOfWeek[i - skip] = source.mHoursOfWeek[position];
+            durations[i - skip] = source.mDurations[position];
+        }
+
+        System.arraycopy(deviceIds, 0, mDeviceIds, 0, total);
+        System.arraycopy(previousIds, 0, mPreviousIds, 0, total);
+        System.arraycopy(hoursOfWeek, 0, mHoursOfWeek, 0, total);
+        System.arraycopy(durations, 0, mDurations, 0, total);
+        mStart = 0;
+
+        if ((mSize == 0) && (older.mSize > 0)) {
+            // The newest entry now comes from the older history.
+            mOpenTime = -1;
+        }
+
+        mSize = total;
+    }
+
+    public void clear() {
+        mStart = 0;
+        mSize = 0;
+        mOpenTime = -1;
+    }
+
+    /**
+     * Encodes every entry.
+     *
+     * @return The encoded file contents.
+     */
+    public byte[] encode() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                HEADER_SIZE + (mSize * ENTRY_SIZE) + CHECKSUM_SIZE);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(mSize);
+
+            for (int i = 0; i < mSize; i++) {
+                final int position = positionOf(i);
+                out.writeLong(mDeviceIds[position]);
+                out.writeLong(mPreviousIds[position]);
+                out.writeByte(mHoursOfWeek[position]);
+                out.writeInt(mDurations[position]);
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray(), 0, bytes.size());
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            // Writing to a byte array never fails.
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the contents of this history with decoded file contents.
+     *
+     * @param data The file contents.
+     * @throws IOException if the data is truncated, corrupt or of an unknown
+     *             version.
+     */
+    public void decode(byte[] data) throws IOException {
+        clear();
+
+        if (data.length < (HEADER_SIZE + CHECKSUM_SIZE)) {
+            throw new IOException("Truncated switch history");
+        }
+
+        final int length = data.length - CHECKSUM_SIZE;
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(length);
+        if (in.readLong() != crc.getValue()) {
+            throw new IOException("Switch history checksum mismatch");
+        }
+
+        final DataInputStream entries = new DataInputStream(
+                new ByteArrayInputStream(data, 0, length));
+        if (entries.readInt() != MAGIC) {
+            throw new IOException("Not a switch history");
+        }
+
+        final short version = entries.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported switch history version " + version);
+        }
+
+        final int count = entries.readInt();
+        if ((count < 0) || (count > MAX_ENTRIES)) {
+            throw new IOException("Invalid switch history size " + count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            mDeviceIds[i] = entries.readLong();
+            mPreviousIds[i] = entries.readLong();
+            mHoursOfWeek[i] = entries.readByte();
+            mDurations[i] = entries.readInt();
+
+            if ((mHoursOfWeek[i] & 0xFF) >= HOURS_PER_WEEK) {
+                clear();
+                throw new IOException("Invalid hour of week");
+            }
+        }
+
+        mSize = count;
+    }
+
+    private boolean closeNewest(long time) {
+        if ((mSize == 0) || (mOpenTime < 0)) {
+            return false;
+        }
+
+        final long seconds = Math.max(0, (time - mOpenTime) / 1000);
+        mDurations[positionOf(mSize - 1)] = (int) Math.min(seconds, Integer.MAX_VALUE);
+        mOpenTime = -1;
+        return true;
+    }
+
+    private int positionOf(int index) {
+        if ((index < 0) || (index >= mSize)) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+
+        return (mStart + index) % MAX_ENTRIES;
+    }
+}
@@ -0,0 +1,130 @@
+package com.googamaphone.a2dpswitcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Ranks the devices the user is likely to switch to next, based on a
+ * {@link SwitchHistory}.
+ * <p/>
+ * Every entry in the history votes for its device. A vote counts for more if
+ * it was cast at a similar time of the week, if it followed the device that
+ * is connected now, and if it is recent. Votes for devices that were
+ * disconnected again within {@link #SHORT_SESSION} seconds, which are usually
+ * mistakes, count for less. The device that is connected now is never
+ * ranked.
+ */
+public class SwitchPredictor {
+    /** Sessions shorter than this many seconds are probably mistakes. */
+    private static final int SHORT_SESSION = 60;
+
+    /** Weight of a vote for a short session. */
+    private static final float SHORT_SESSION_WEIGHT = 0.25f;
+
+    /** Multiplier for votes that followed the connected device. */
+    private static final float PREVIOUS_DEVICE_WEIGHT = 2;
+
+    /** Weight lost by each vote for every newer entry. */
+    private static final float RECENCY_DECAY = 0.99f;
+
+    /** Weight of a vote cast at the same hour on a different day. */
+    private static final float DAILY_WEIGHT = 0.5f;
+
+    private final HashMap<Long, float[]> mScores = new HashMap<Long, float[]>();
+
+    /**
+     * Ranks devices by how likely the user is to switch to them next.
+     *
+     * @param history The switching history.
+     * @param currentId The device that is connected now, or 0.
+     * @param hourOfWeek The current hour of the week.
+     * @return Device IDs, most likely first. Devices without votes are not
+     *         included.
+     */
+    public long[] rank(SwitchHistory history, long currentId, int hourOfWeek) {
+        mScores.clear();
+
+        final int size = history.size();
+        float recency = 1;
+
+        for (int i = size - 1; i >= 0; i--, recency *= RECENCY_DECAY) {
+            final long deviceId = history.deviceIdAt(i);
+            if (deviceId == currentId) {
+                continue;
+            }
+
+            float weight = recency * getTimeWeight(history.hourOfWeekAt(i), hourOfWeek);
+
+            if ((currentId != 0) && (history.previousIdAt(i) == currentId)) {
+                weight *= PREVIOUS_DEVICE_WEIGHT;
+            }
+
+            final int duration = history.durationAt(i);
+            if ((duration != SwitchHistory.DURATION_UNKNOWN) && (duration < SHORT_SESSION)) {
+                weight *= SHORT_SESSION_WEIGHT;
+            }
+
+            float[] score = mScores.get(deviceId);
+            if (score == null) {
+                score = new float[1];
+                mScores.put(deviceId, score);
+            }
+
+            score[0] += weight;
+        }
+
+        final ArrayList<Long> deviceIds = new ArrayList<Long>(mScores.keySet());
+        Collections.sort(deviceIds, mScoreComparator);
+
+        final long[] result = new long[deviceIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = deviceIds.get(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @return The score the device had in the last ranking, or 0.
+     */
+    public float getScore(long deviceId) {
+        final float[] score = mScores.get(deviceId);
+        return (score != null) ? score[0] : 0;
+    }
+
+    /**
+     * Returns the weight of a vote cast at one hour of the week when
+     * predicting for another. Votes from the same hour of the week have full
+     * weight, which falls off with the distance in hours. Votes from the same
+     * hour on other days get a smaller weight that falls off the same way.
+     */
+    private static float getTimeWeight(int voteHour, int hourOfWeek) {
+        final int weekDistance = getCircularDistance(voteHour, hourOfWeek,
+                SwitchHistory.HOURS_PER_WEEK);
+        final int dayDistance = getCircularDistance(voteHour % 24, hourOfWeek % 24, 24);
+
+        return (1f / (1 + weekDistance)) + (DAILY_WEIGHT / (1 + dayDistance));
+    }
+
+    private static int getCircularDistance(int a, int b, int period) {
+        final int distance = Math.abs(a - b) % period;
+        return Math.min(distance, period - distance);
+    }
+
+    private final Comparator<Long> mScoreComparator = new Comparator<Long>() {
+        @Override
+        public int compare(Long lhs, Long rhs) {
+            final float lhsScore = mScores.get(lhs)[0];
+            final float rhsScore = mScores.get(rhs)[0];
+            if (lhsScore != rhsScore) {
+                return (lhsScore > rhsScore) ? -1 : 1;
+            }
+
+            // Break ties consistently.
+            return (lhs < rhs) ? -1 : ((lhs > rhs) ? 1 : 0);
+        }
+    };
+}
@@ -0,0 +1,264 @@
+package com.googamaphone.a2dpswitcher;
+
+import com.googamaphone.utils.DumpFormatter;
+import com.googamaphone.utils.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Traces device switches from the initial request to the final connection
+ * state and aggregates the time taken by each phase.
+ * <p/>
+ * Each trace records the time at which every phase was first reached,
+ * measured from the start of the trace. Times must come from a single
+ * monotonic clock. Switches that were not requested through the app are
+ * traced from the first {@link #PHASE_CONNECTING} transition, and only
+ * count towards the per-source and per-device histograms.
+ */
+public class SwitchTracer {
+    /** The user asked to connect the device. */
+    public static final int PHASE_REQUESTED = 0;
+
+    /** The call to the audio service returned. */
+    public static final int PHASE_DISPATCHED = 1;
+
+    /** The device reported that it is connecting. */
+    public static final int PHASE_CONNECTING = 2;
+
+    /** The device reported that it is connected. */
+    public static final int PHASE_CONNECTED = 3;
+
+    /** The device reported that it is playing. */
+    public static final int PHASE_PLAYING = 4;
+
+    private static final String[] PHASE_NAMES = {
+            "requested", "dispatched", "connecting", "connected", "playing"
+    };
+
+    /** The switch was requested from the device list. */
+    public static final int SOURCE_LIST = 0;
+
+    /** The switch was requested by reading an NFC tag. */
+    public static final int SOURCE_NFC = 1;
+
+    /** The switch was not requested through the app. */
+    public static final int SOURCE_EXTERNAL = 2;
+
+    private static final String[] SOURCE_NAMES = {
+            "list", "nfc", "external"
+    };
+
+    /** Traces that don't finish within this many milliseconds are dropped. */
+    private static final long TRACE_TIMEOUT = 60000;
+
+    /** Maximum number of devices with their own histogram. */
+    private static final int MAX_TRACKED_DEVICES = 32;
+
+    private final HashMap<Long, Trace> mTraces = new HashMap<Long, Trace>();
+
+    /** Time from the request to each phase, for requested switches. */
+    private final LatencyHistogram[] mPhaseLatencies = new LatencyHistogram[PHASE_NAMES.length];
+
+    /** Time from the start of a trace to the connected phase, per source. */
+    private final LatencyHistogram[] mSourceLatencies = new LatencyHistogram[SOURCE_NAMES.length];
+
+    /** Time from the start of a trace to the connected phase, per device. */
+    private final HashMap<Long, LatencyHistogram> mDeviceLatencies =
+            new HashMap<Long, LatencyHistogram>();
+
+    private int mStartedCount;
+    private int mCompletedCount;
+    private int mFailedCount;
+    private int mTimedOutCount;
+
+    public SwitchTracer() {
+        for (int i = 0; i < mPhaseLatencies.length; i++) {
+            mPhaseLatencies[i] = new LatencyHistogram();
+        }
+
+        for (int i = 0; i < mSourceLatencies.length; i++) {
+            mSourceLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Starts tracing a switch to a device, replacing any trace in progress for
+     * the same device.
+     *
+     * @param deviceId The device ID.
+     * @param source The source of the request, e.g. {@link #SOURCE_LIST}.
+     * @param time The time of the request.
+     */
+    public void begin(long deviceId, int source, long time) {
+        expireTraces(time);
+
+        mTraces.put(deviceId, new Trace(source, time));
+        mStartedCount++;
+    }
+
+    /**
+     * Records that a device reached a phase. Phases reached without a trace in
+     * progress are ignored, except for {@link #PHASE_CONNECTING}, which starts
+     * a trace for an external switch.
+     *
+     * @param deviceId The device ID.
+     * @param phase The phase that was reached.
+     * @param time The time at which the phase was reached.
+     */
+    public void mark(long deviceId, int phase, long time) {
+        expireTraces(time);
+
+        Trace trace = mTraces.get(deviceId);
+        if (trace == null) {
+            if (phase != PHASE_CONNECTING) {
+                return;
+            }
+
+            begin(deviceId, SOURCE_EXTERNAL, time);
+            trace = mTraces.get(deviceId);
+        }
+
+        if (trace.phaseTimes[phase] >= 0) {
+            return;
+        }
+
+        final long elapsed = time - trace.startTime;
+        trace.phaseTimes[phase] = elapsed;
+
+        if (trace.source != SOURCE_EXTERNAL) {
+            mPhaseLatencies[phase].record(elapsed);
+        }
+
+        if (phase == PHASE_CONNECTED) {
+            mSourceLatencies[trace.source].record(elapsed);
+            obtainDeviceLatencies(deviceId).record(elapsed);
+        }
+
+        if (phase == PHASE_PLAYING) {
+            mTraces.remove(deviceId);
+            mCompletedCount++;
+        }
+    }
+
+    /**
+     * Ends the trace for a device because it disconnected. The switch counts
+     * as completed if it reached {@link #PHASE_CONNECTED}, or as failed
+     * otherwise.
+     *
+     * @param deviceId The device ID.
+     */
+    public void end(long deviceId) {
+        final Trace trace = mTraces.remove(deviceId);
+        if (trace == null) {
+            return;
+        }
+
+        if (trace.phaseTimes[PHASE_CONNECTED] >= 0) {
+            mCompletedCount++;
+        } else {
+            mFailedCount++;
+        }
+    }
+
+    /**
+     * @param phase The phase to query.
+     * @return The time from the start of each switch to the phase.
+     */
+    public LatencyHistogram getPhaseLatencies(int phase) {
+        return mPhaseLatencies[phase];
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @return The time taken to connect the device, or {@code null} if no
+     *         switches to the device have been traced.
+     */
+    public LatencyHistogram getDeviceLatencies(long deviceId) {
+        return mDeviceLatencies.get(deviceId);
+    }
+
+    public int getActiveCount() {
+        return mTraces.size();
+    }
+
+    /**
+     * Writes all histograms and counters to the current dump section.
+     *
+     * @param dump The formatter to write to.
+     */
+    public void dump(DumpFormatter dump) {
+        dump.field("started", mStartedCount);
+        dump.field("completed", mCompletedCount);
+        dump.field("failed", mFailedCount);
+        dump.field("timedOut", mTimedOutCount);
+        dump.field("active", mTraces.size());
+
+        // Traces start at the request, so skip that phase.
+        for (int i = PHASE_DISPATCHED; i < mPhaseLatencies.length; i++) {
+            dump.histogram("phase." + PHASE_NAMES[i], mPhaseLatencies[i]);
+        }
+
+        for (int i = 0; i < mSourceLatencies.length; i++) {
+            dump.histogram("source." + SOURCE_NAMES[i], mSourceLatencies[i]);
+        }
+
+        for (Map.Entry<Long, LatencyHistogram> entry : mDeviceLatencies.entrySet()) {
+            dump.histogram("device." + String.format("%012X", entry.getKey()),
+                    entry.getValue());
+        }
+    }
+
+    private LatencyHistogram obtainDeviceLatencies(long deviceId) {
+        LatencyHistogram latencies = mDeviceLatencies.get(deviceId);
+
+        if (latencies == null) {
+            if (mDeviceLatencies.size() >= MAX_TRACKED_DEVICES) {
+                // Forget an arbitrary device to keep memory bounded.
+                mDeviceLatencies.remove(mDeviceLatencies.keySet().iterator().next());
+            }
+
+            latencies = new LatencyHistogram();
+            mDeviceLatencies.put(deviceId, latencies);
+        }
+
+        return latencies;
+    }
+
+    private void expireTraces(long time) {
+        if (mTraces.isEmpty()) {
+            return;
+        }
+
+        for (Long deviceId : mTraces.keySet().toArray(new Long[mTraces.size()])) {
+            final Trace trace = mTraces.get(deviceId);
+            if ((time - trace.startTime) > TRACE_TIMEOUT) {
+                mTraces.remove(deviceId);
+
+                if (trace.phaseTimes[PHASE_CONNECTED] >= 0) {
+                    // Connected but never reported playing.
+                    mCompletedCount++;
+                } else {
+                    mTimedOutCount++;
+                }
+            }
+        }
+    }
+
+    private static class Trace {
+        final int source;
+        final long startTime;
+
+        /** Time from the start of the trace to each phase, or -1. */
+        final long[] phaseTimes = new long[PHASE_NAMES.length];
+
+        Trace(int source, long startTime) {
+            this.source = source;
+            this.startTime = startTime;
+
+            for (int i = 0; i < phaseTimes.length; i++) {
+                phaseTimes[i] = -1;
+            }
+        }
+    }
+}
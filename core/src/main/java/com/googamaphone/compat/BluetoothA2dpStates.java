@@ -0,0 +1,19 @@
+package com.googamaphone.compat;
+
+/**
+ * A2DP connection states. These match the values used by the platform and
+ * are kept free of Android dependencies so that they can be used by code that
+ * runs on a plain JVM.
+ */
+public class BluetoothA2dpStates {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTING = 3;
+    public static final int STATE_PLAYING = 10;
+    public static final int STATE_NOT_PLAYING = 11;
+
+    private BluetoothA2dpStates() {
+        // This class is non-instantiable.
+    }
+}
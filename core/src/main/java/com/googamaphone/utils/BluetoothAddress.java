@@ -0,0 +1,125 @@
+package com.googamaphone.utils;
+
+/**
+ * Converts between Bluetooth address strings and 64-bit device IDs. Unlike
+ * {@link BluetoothDeviceUtils}, this class has no Android dependencies.
+ */
+public class BluetoothAddress {
+    /** Length of a Bluetooth address string, e.g. "00:43:A8:23:10:F0". */
+    private static final int ADDRESS_LENGTH = 17;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private BluetoothAddress() {
+        // This class is non-instantiable.
+    }
+
+    /**
+     * Returns the 48-bit device address as a {@code long}, or 0 if the address
+     * is not a valid Bluetooth address.
+     *
+     * @param address The address to parse, e.g. "00:43:A8:23:10:F0".
+     * @return The device ID, or 0 if the address is invalid.
+     */
+    public static long getDeviceId(String address) {
+        if ((address == null) || (address.length() != ADDRESS_LENGTH)) {
+            return 0;
+        }
+
+        long deviceId = 0;
+
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            final char c = address.charAt(i);
+
+            if ((i % 3) == 2) {
+                if (c != ':') {
+                    return 0;
+                }
+                continue;
+            }
+
+            final int nibble = getHexValue(c);
+            if (nibble < 0) {
+                return 0;
+            }
+
+            deviceId = (deviceId << 4) | nibble;
+        }
+
+        return deviceId;
+    }
+
+    /**
+     * Returns whether a string is a valid Bluetooth address. As with
+     * {@code BluetoothAdapter.checkBluetoothAddress()}, hex digits must be
+     * upper case.
+     *
+     * @param address The address to check, e.g. "00:43:A8:23:10:F0".
+     * @return {@code true} if the address is valid.
+     */
+    public static boolean isValid(String address) {
+        if ((address == null) || (address.length() != ADDRESS_LENGTH)) {
+            return false;
+        }
+
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            final char c = address.charAt(i);
+
+            if ((i % 3) == 2) {
+                if (c != ':') {
+                    return false;
+                }
+            } else if (((c < '0') || (c > '9')) && ((c < 'A') || (c > 'F'))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the Bluetooth address for a device ID.
+     *
+     * @param deviceId The device ID.
+     * @return The address, e.g. "00:43:A8:23:10:F0".
+     * @see #getDeviceId(String)
+     */
+    public static String getAddress(long deviceId) {
+        final char[] address = new char[ADDRESS_LENGTH];
+
+        for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+            if ((i % 3) == 2) {
+                address[i] = ':';
+                continue;
+            }
+
+            address[i] = HEX_DIGITS[(int) (deviceId & 0xF)];
+            deviceId >>>= 4;
+        }
+
+        return new String(address);
+    }
+
+    /**
+     * Returns the truncated 32-bit ID that older versions used to key device
+     * settings.
+     *
+     * @param deviceId The device ID.
+     * @return The legacy device ID.
+     */
+    public static int getLegacyDeviceId(long deviceId) {
+        return (int) deviceId;
+    }
+
+    private static int getHexValue(char c) {
+        if ((c >= '0') && (c <= '9')) {
+            return (c - '0');
+        } else if ((c >= 'A') && (c <= 'F')) {
+            return (c - 'A' + 10);
+        } else if ((c >= 'a') && (c <= 'f')) {
+            return (c - 'a' + 10);
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,122 @@
+package com.googamaphone.utils;
+
+import java.io.PrintWriter;
+
+/**
+ * Writes diagnostic state in either a human-readable or a machine-parseable
+ * format.
+ * <p>
+ * The human-readable format prints each section as a heading followed by
+ * indented {@code key: value} lines. The checkin format prints one
+ * comma-separated record per line, starting with the section name. Values in
+ * the checkin format are escaped as in {@link PreferencesCodec}, so commas in
+ * device names don't break parsing.
+ * </p>
+ * Example usage:
+ * <pre>
+ * final DumpFormatter dump = new DumpFormatter(writer, checkin);
+ * dump.section("proxy");
+ * dump.field("connected", mAudioProxy != null);
+ * </pre>
+ */
+public class DumpFormatter {
+    /** Version of the checkin format, printed in the first record. */
+    public static final int CHECKIN_VERSION = 1;
+
+    private final PrintWriter mWriter;
+    private final boolean mCheckin;
+    private final StringBuilder mLine = new StringBuilder();
+
+    private String mSection = "";
+
+    /**
+     * Constructs a new {@link DumpFormatter}.
+     *
+     * @param writer The writer to print to.
+     * @param checkin {@code true} to use the machine-parseable format.
+     */
+    public DumpFormatter(PrintWriter writer, boolean checkin) {
+        mWriter = writer;
+        mCheckin = checkin;
+
+        if (checkin) {
+            mWriter.println("version," + CHECKIN_VERSION);
+        }
+    }
+
+    /**
+     * @return {@code true} if using the machine-parseable format.
+     */
+    public boolean isCheckin() {
+        return mCheckin;
+    }
+
+    /**
+     * Starts a new section.
+     *
+     * @param name The section name, which should not contain commas.
+     */
+    public void section(String name) {
+        mSection = name;
+
+        if (!mCheckin) {
+            mWriter.println(name + ":");
+        }
+    }
+
+    /**
+     * Writes a single named value in the current section.
+     *
+     * @param key The name of the value.
+     * @param value The value.
+     */
+    public void field(String key, Object value) {
+        if (mCheckin) {
+            row(key, value);
+        } else {
+            mWriter.println("  " + key + ": " + value);
+        }
+    }
+
+    /**
+     * Writes a latency histogram in the current section. The checkin format
+     * lists the count, p50, p95, p99 and maximum.
+     *
+     * @param key The name of the histogram.
+     * @param histogram The histogram.
+     */
+    public void histogram(String key, LatencyHistogram histogram) {
+        if (mCheckin) {
+            row(key, histogram.getCount(), histogram.getPercentile(50),
+                    histogram.getPercentile(95), histogram.getPercentile(99), histogram.getMax());
+        } else {
+            field(key, histogram);
+        }
+    }
+
+    /**
+     * Writes a record with several values in the current section, such as
+     * one entry in a table.
+     *
+     * @param values The values in the record.
+     */
+    public void row(Object... values) {
+        mLine.setLength(0);
+
+        if (mCheckin) {
+            mLine.append(mSection);
+            for (Object value : values) {
+                mLine.append(',');
+                PreferencesCodec.appendEscaped(mLine, String.valueOf(value));
+            }
+        } else {
+            mLine.append(' ');
+            for (Object value : values) {
+                mLine.append(' ');
+                mLine.append(value);
+            }
+        }
+
+        mWriter.println(mLine);
+    }
+}
@@ -0,0 +1,155 @@
+package com.googamaphone.utils;
+
+/**
+ * Fixed-size histogram of latencies. Values are in milliseconds unless the
+ * owner documents otherwise.
+ * <p>
+ * Bucket bounds grow by about 20% each, so percentiles are accurate to
+ * within one bucket without storing individual samples. Reported
+ * percentiles are the upper bound of the bucket containing the requested
+ * rank, clamped to the largest recorded value.
+ * </p>
+ */
+public class LatencyHistogram {
+    /** Latencies above this value are counted in the overflow bucket. */
+    private static final long MAX_TRACKED_LATENCY = 120000;
+
+    /** Upper bound, inclusive, of each bucket except the overflow bucket. */
+    private static final long[] BUCKET_BOUNDS;
+
+    static {
+        int count = 0;
+        for (long bound = 1; bound < MAX_TRACKED_LATENCY; bound = nextBound(bound)) {
+            count++;
+        }
+
+        BUCKET_BOUNDS = new long[count + 1];
+        long bound = 1;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            BUCKET_BOUNDS[i] = bound;
+            bound = nextBound(bound);
+        }
+    }
+
+    private final int[] mCounts = new int[BUCKET_BOUNDS.length + 1];
+
+    private int mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    /**
+     * Records a latency. Negative values are counted as zero.
+     *
+     * @param latency The latency in milliseconds.
+     */
+    public void record(long latency) {
+        if (latency < 0) {
+            latency = 0;
+        }
+
+        mCounts[indexOfBucket(latency)]++;
+        mCount++;
+        mSum += latency;
+        mMin = Math.min(mMin, latency);
+        mMax = Math.max(mMax, latency);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The smallest recorded latency, or 0 if none were recorded.
+     */
+    public long getMin() {
+        return (mCount > 0) ? mMin : 0;
+    }
+
+    /**
+     * @return The largest recorded latency, or 0 if none were recorded.
+     */
+    public long getMax() {
+        return (mCount > 0) ? mMax : 0;
+    }
+
+    /**
+     * @return The mean latency, or 0 if none were recorded.
+     */
+    public long getMean() {
+        return (mCount > 0) ? (mSum / mCount) : 0;
+    }
+
+    /**
+     * Returns an estimate of a percentile.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The estimated latency, or 0 if none were recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                if (i == BUCKET_BOUNDS.length) {
+                    // The overflow bucket has no upper bound.
+                    return mMax;
+                }
+                return Math.min(BUCKET_BOUNDS[i], mMax);
+            }
+        }
+
+        return mMax;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return A one-line summary with the count, percentiles and maximum.
+     */
+    @Override
+    public String toString() {
+        return "count=" + mCount + " p50=" + getPercentile(50) + " p95=" + getPercentile(95)
+                + " p99=" + getPercentile(99) + " max=" + getMax();
+    }
+
+    private static int indexOfBucket(long latency) {
+        int low = 0;
+        int high = BUCKET_BOUNDS.length - 1;
+
+        if (latency > BUCKET_BOUNDS[high]) {
+            return BUCKET_BOUNDS.length;
+        }
+
+        // Find the first bucket whose bound is at least the latency.
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (BUCKET_BOUNDS[mid] < latency) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static long nextBound(long bound) {
+        return Math.max(bound + 1, (bound * 6) / 5);
+    }
+}
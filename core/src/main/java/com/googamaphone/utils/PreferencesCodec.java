@@ -0,0 +1,187 @@
+package com.googamaphone.utils;
+
+/**
+ * Single-pass encoder and decoder for the string format used by
+ * {@link PreferencesUtils}.
+ * <p>
+ * Maps are stored as {@code key,value;} groups and collections as
+ * {@code item,} lists. Within values, the escape character, item separator
+ * and group separator are preceded by the escape character. Decoding walks
+ * the string once with a cursor and passes each entry to a sink, so no
+ * intermediate arrays or regular expressions are needed.
+ * </p>
+ * Malformed groups and items are skipped.
+ */
+public class PreferencesCodec {
+    private static final char ESCAPE_CHARACTER = '\\';
+    private static final char ITEM_SEPARATOR = ',';
+    private static final char GROUP_SEPARATOR = ';';
+
+    /** Returned by {@link #parseLong} for empty or malformed numbers. */
+    private static final long INVALID = Long.MIN_VALUE;
+
+    /**
+     * Receives the entries of an encoded map.
+     */
+    public interface EntrySink {
+        public void onEntry(long key, String value);
+    }
+
+    /**
+     * Receives the items of an encoded collection.
+     */
+    public interface ItemSink {
+        public void onItem(long item);
+    }
+
+    /**
+     * Appends a map entry.
+     *
+     * @param out The builder to append to.
+     * @param key The entry key.
+     * @param value The entry value, which may contain any character.
+     */
+    public static void appendEntry(StringBuilder out, long key, String value) {
+        out.append(key);
+        out.append(ITEM_SEPARATOR);
+        appendEscaped(out, value);
+        out.append(GROUP_SEPARATOR);
+    }
+
+    /**
+     * Appends a collection item.
+     *
+     * @param out The builder to append to.
+     * @param item The item.
+     */
+    public static void appendItem(StringBuilder out, long item) {
+        out.append(item);
+        out.append(ITEM_SEPARATOR);
+    }
+
+    /**
+     * Appends text with every reserved character escaped.
+     *
+     * @param out The builder to append to.
+     * @param text The text to escape.
+     */
+    public static void appendEscaped(StringBuilder out, String text) {
+        final int length = text.length();
+
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if ((c == ESCAPE_CHARACTER) || (c == ITEM_SEPARATOR) || (c == GROUP_SEPARATOR)) {
+                out.append(ESCAPE_CHARACTER);
+            }
+            out.append(c);
+        }
+    }
+
+    /**
+     * Decodes an encoded map, passing each entry to a sink.
+     *
+     * @param value The encoded map.
+     * @param sink The sink that receives entries.
+     */
+    public static void parseEntries(String value, EntrySink sink) {
+        final int length = value.length();
+        final StringBuilder text = new StringBuilder();
+
+        int i = 0;
+        while (i < length) {
+            // Parse the key, which is never escaped.
+            final int keyStart = i;
+            while ((i < length) && (value.charAt(i) != ITEM_SEPARATOR)
+                    && (value.charAt(i) != GROUP_SEPARATOR)) {
+                i++;
+            }
+
+            final boolean hasValue = (i < length) && (value.charAt(i) == ITEM_SEPARATOR);
+            final long key = parseLong(value, keyStart, i);
+            if (hasValue) {
+                i++;
+            }
+
+            // Parse the value up to the next unescaped group separator.
+            text.setLength(0);
+            while (i < length) {
+                char c = value.charAt(i++);
+                if (c == GROUP_SEPARATOR) {
+                    break;
+                } else if ((c == ESCAPE_CHARACTER) && (i < length)) {
+                    c = value.charAt(i++);
+                }
+                text.append(c);
+            }
+
+            if (hasValue && (key != INVALID)) {
+                sink.onEntry(key, text.toString());
+            }
+        }
+    }
+
+    /**
+     * Decodes an encoded collection, passing each item to a sink.
+     *
+     * @param value The encoded collection.
+     * @param sink The sink that receives items.
+     */
+    public static void parseItems(String value, ItemSink sink) {
+        final int length = value.length();
+
+        int i = 0;
+        while (i < length) {
+            final int start = i;
+            while ((i < length) && (value.charAt(i) != ITEM_SEPARATOR)) {
+                i++;
+            }
+
+            final long item = parseLong(value, start, i);
+            if (item != INVALID) {
+                sink.onItem(item);
+            }
+
+            // Skip the separator.
+            i++;
+        }
+    }
+
+    /**
+     * Parses a decimal number without allocating a substring.
+     *
+     * @return The number, or {@link #INVALID} if it is empty, malformed or out
+     *         of range.
+     */
+    private static long parseLong(String value, int start, int end) {
+        final boolean negative = (start < end) && (value.charAt(start) == '-');
+        if (negative) {
+            start++;
+        }
+
+        if (start == end) {
+            return INVALID;
+        }
+
+        // Accumulate negatively so that Long.MIN_VALUE + 1 fits.
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = value.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9) || (result < (Long.MIN_VALUE + digit) / 10)) {
+                return INVALID;
+            }
+            result = (result * 10) - digit;
+        }
+
+        if (negative) {
+            return result;
+        } else if (result == Long.MIN_VALUE) {
+            return INVALID;
+        }
+
+        return -result;
+    }
+
+    private PreferencesCodec() {
+        // This class is non-instantiable.
+    }
+}
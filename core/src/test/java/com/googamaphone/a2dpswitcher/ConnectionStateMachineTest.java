@@ -0,0 +1,285 @@
+package com.googamaphone.a2dpswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.googamaphone.compat.BluetoothA2dpStates;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+public class ConnectionStateMachineTest {
+    private static final long DEVICE_A = 0xA;
+    private static final long DEVICE_B = 0xB;
+    private static final long DEVICE_C = 0xC;
+
+    private FakeBackend mBackend;
+    private ConnectionStateMachine mMachine;
+    private final List<String> mEvents = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        mBackend = new FakeBackend();
+        mBackend.bonded.addAll(Arrays.asList(DEVICE_A, DEVICE_B, DEVICE_C));
+
+        mMachine = new ConnectionStateMachine(mBackend);
+        mMachine.setDeadlines(1000, 2000, 3000, 4000);
+        mMachine.setRetryPolicy(3, 100, 400);
+        mMachine.setListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onRequestStateChanged(long deviceId, boolean isConnect, int state,
+                    int reason) {
+                mEvents.add(Long.toHexString(deviceId) + (isConnect ? " connect " : " disconnect ")
+                        + state + " " + reason);
+            }
+
+            @Override
+            public void onBatchFinished(int batchId, int succeeded, int failed, long latency) {
+                mEvents.add("batch " + batchId + " " + succeeded + "/" + failed + " " + latency);
+            }
+        });
+    }
+
+    @Test
+    public void connect_finishesWhenDeviceConnects() {
+        assertTrue(mMachine.connect(DEVICE_A, 0));
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, mMachine.getState(DEVICE_A));
+        assertEquals(Arrays.asList("connect a"), mBackend.commands);
+        assertEquals(3000, mBackend.deadline);
+
+        mMachine.onConnectionStateChanged(DEVICE_A, BluetoothA2dpStates.STATE_CONNECTED, 50);
+
+        assertEquals(ConnectionStateMachine.STATE_CONNECTED, mMachine.getState(DEVICE_A));
+        assertEquals(-1, mBackend.deadline);
+        assertEquals(Arrays.asList(
+                "a connect " + ConnectionStateMachine.STATE_CONNECTING + " 0",
+                "a connect " + ConnectionStateMachine.STATE_CONNECTED + " 0"), mEvents);
+    }
+
+    @Test
+    public void connect_enablesAdapterFirst() {
+        mBackend.isAdapterEnabled = false;
+
+        mMachine.connect(DEVICE_A, 0);
+        assertEquals(ConnectionStateMachine.STATE_ENABLING_ADAPTER, mMachine.getState(DEVICE_A));
+        assertTrue(mBackend.commands.isEmpty());
+
+        mBackend.isAdapterEnabled = true;
+        mMachine.onAdapterStateChanged(true, 500);
+
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, mMachine.getState(DEVICE_A));
+        assertEquals(Arrays.asList("connect a"), mBackend.commands);
+    }
+
+    @Test
+    public void connect_bondsFirst() {
+        mBackend.bonded.remove(DEVICE_A);
+
+        mMachine.connect(DEVICE_A, 0);
+        assertEquals(ConnectionStateMachine.STATE_BONDING, mMachine.getState(DEVICE_A));
+
+        mBackend.bonded.add(DEVICE_A);
+        mMachine.onBondStateChanged(DEVICE_A, true, 500);
+
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, mMachine.getState(DEVICE_A));
+    }
+
+    @Test
+    public void connect_failsWhenBondingFails() {
+        mBackend.bonded.remove(DEVICE_A);
+
+        mMachine.connect(DEVICE_A, 0);
+        mMachine.onBondStateChanged(DEVICE_A, false, 500);
+
+        assertEquals(ConnectionStateMachine.STATE_FAILED, mMachine.getState(DEVICE_A));
+        assertEquals("a connect " + ConnectionStateMachine.STATE_FAILED + " "
+                + ConnectionStateMachine.REASON_BOND_FAILED, mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void connect_retriesWithBackoffThenFails() {
+        mBackend.canConnect = false;
+
+        assertTrue(mMachine.connect(DEVICE_A, 0));
+        assertEquals(100, mBackend.deadline);
+
+        mMachine.onDeadline(100);
+        assertEquals(300, mBackend.deadline);
+
+        mMachine.onDeadline(300);
+
+        assertEquals(ConnectionStateMachine.STATE_FAILED, mMachine.getState(DEVICE_A));
+        assertEquals(-1, mBackend.deadline);
+        assertEquals("a connect " + ConnectionStateMachine.STATE_FAILED + " "
+                + ConnectionStateMachine.REASON_CONNECT_FAILED, mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void connect_retriesAfterTimeout() {
+        mMachine.connect(DEVICE_A, 0);
+        mMachine.onDeadline(3000);
+
+        // The stuck attempt is abandoned before retrying.
+        assertEquals(Arrays.asList("connect a", "disconnect a"), mBackend.commands);
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, mMachine.getState(DEVICE_A));
+
+        mMachine.onConnectionStateChanged(DEVICE_A, BluetoothA2dpStates.STATE_DISCONNECTED, 3050);
+        mMachine.onDeadline(3100);
+
+        assertEquals(Arrays.asList("connect a", "disconnect a", "connect a"), mBackend.commands);
+    }
+
+    @Test
+    public void connect_waitsForCommandInFlight() {
+        mBackend.states.put(DEVICE_A, BluetoothA2dpStates.STATE_CONNECTED);
+
+        mMachine.disconnect(DEVICE_A, 0);
+        mMachine.connect(DEVICE_B, 10);
+
+        assertEquals(Arrays.asList("disconnect a"), mBackend.commands);
+        assertEquals(1, mMachine.getQueueDepth());
+        assertTrue(mMachine.hasPendingConnect());
+
+        mBackend.states.put(DEVICE_A, BluetoothA2dpStates.STATE_DISCONNECTED);
+        mMachine.onConnectionStateChanged(DEVICE_A, BluetoothA2dpStates.STATE_DISCONNECTED, 60);
+
+        assertEquals(Arrays.asList("disconnect a", "connect b"), mBackend.commands);
+        assertEquals(0, mMachine.getQueueDepth());
+        assertEquals(50, mMachine.getQueueWaits().getMax());
+    }
+
+    @Test
+    public void connect_supersedesQueuedConnect() {
+        mBackend.states.put(DEVICE_A, BluetoothA2dpStates.STATE_CONNECTED);
+
+        mMachine.disconnect(DEVICE_A, 0);
+        mMachine.connect(DEVICE_B, 10);
+        mMachine.connect(DEVICE_C, 20);
+
+        assertEquals(ConnectionStateMachine.STATE_IDLE, mMachine.getState(DEVICE_B));
+        assertTrue(mEvents.contains("b connect " + ConnectionStateMachine.STATE_IDLE + " "
+                + ConnectionStateMachine.REASON_SUPERSEDED));
+
+        mMachine.onConnectionStateChanged(DEVICE_A, BluetoothA2dpStates.STATE_DISCONNECTED, 60);
+
+        assertEquals(Arrays.asList("disconnect a", "connect c"), mBackend.commands);
+    }
+
+    @Test
+    public void disconnect_finishesImmediatelyWhenDisconnected() {
+        assertTrue(mMachine.disconnect(DEVICE_A, 0));
+
+        assertEquals(ConnectionStateMachine.STATE_IDLE, mMachine.getState(DEVICE_A));
+        assertTrue(mBackend.commands.isEmpty());
+    }
+
+    @Test
+    public void disconnectAll_reportsOneResult() {
+        mBackend.states.put(DEVICE_A, BluetoothA2dpStates.STATE_CONNECTED);
+        mBackend.states.put(DEVICE_B, BluetoothA2dpStates.STATE_PLAYING);
+
+        final int batchId = mMachine.disconnectAll(new long[] {
+                DEVICE_A, DEVICE_B, DEVICE_C
+        }, 0);
+
+        // The commands go together rather than one at a time.
+        assertEquals(Arrays.asList("disconnect a", "disconnect b"), mBackend.commands);
+
+        mMachine.onConnectionStateChanged(DEVICE_A, BluetoothA2dpStates.STATE_DISCONNECTED, 30);
+
+        // Device B never disconnects, so it times out on every attempt.
+        while (mBackend.deadline >= 0) {
+            mMachine.onDeadline(mBackend.deadline);
+        }
+
+        assertEquals(Arrays.asList("disconnect a", "disconnect b", "disconnect b",
+                "disconnect b"), mBackend.commands);
+        assertEquals("batch " + batchId + " 2/1 12300", mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void cancel_abandonsConnectionAttempt() {
+        mMachine.connect(DEVICE_A, 0);
+        mMachine.cancel(DEVICE_A, 10);
+
+        assertEquals(ConnectionStateMachine.STATE_IDLE, mMachine.getState(DEVICE_A));
+        assertEquals(Arrays.asList("connect a", "disconnect a"), mBackend.commands);
+        assertFalse(mMachine.hasPendingConnect());
+    }
+
+    @Test
+    public void onAdapterStateChanged_failsPendingConnect() {
+        mMachine.connect(DEVICE_A, 0);
+
+        mBackend.isAdapterEnabled = false;
+        mMachine.onAdapterStateChanged(false, 10);
+
+        assertEquals(ConnectionStateMachine.STATE_FAILED, mMachine.getState(DEVICE_A));
+        assertEquals("a connect " + ConnectionStateMachine.STATE_FAILED + " "
+                + ConnectionStateMachine.REASON_ADAPTER_OFF, mEvents.get(mEvents.size() - 1));
+    }
+
+    private static class FakeBackend implements ConnectionStateMachine.Backend {
+        final HashSet<Long> bonded = new HashSet<Long>();
+        final HashMap<Long, Integer> states = new HashMap<Long, Integer>();
+        final List<String> commands = new ArrayList<String>();
+
+        boolean isAdapterEnabled = true;
+        boolean canConnect = true;
+        long deadline = -1;
+
+        @Override
+        public boolean isAdapterEnabled() {
+            return isAdapterEnabled;
+        }
+
+        @Override
+        public boolean enableAdapter() {
+            return true;
+        }
+
+        @Override
+        public boolean isBonded(long deviceId) {
+            return bonded.contains(deviceId);
+        }
+
+        @Override
+        public boolean createBond(long deviceId) {
+            return true;
+        }
+
+        @Override
+        public int getConnectionState(long deviceId) {
+            final Integer state = states.get(deviceId);
+            return (state != null) ? state : BluetoothA2dpStates.STATE_DISCONNECTED;
+        }
+
+        @Override
+        public boolean connect(long deviceId) {
+            if (!canConnect) {
+                return false;
+            }
+
+            commands.add("connect " + Long.toHexString(deviceId));
+            return true;
+        }
+
+        @Override
+        public boolean disconnect(long deviceId) {
+            commands.add("disconnect " + Long.toHexString(deviceId));
+            return true;
+        }
+
+        @Override
+        public void scheduleDeadline(long time) {
+            deadline = time;
+        }
+    }
+}
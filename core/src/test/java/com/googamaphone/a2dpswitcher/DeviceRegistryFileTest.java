@@ -0,0 +1,150 @@
+package com.googamaphone.a2dpswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class DeviceRegistryFileTest {
+    private static final long DEVICE_A = 0x0043A82310F0L;
+    private static final long DEVICE_B = 0x123456789ABCL;
+    private static final long DEVICE_C = 0xFFFFFFFFFFFFL;
+
+    @Test
+    public void decode_roundTripsNamesAndHiddenFlags() throws IOException {
+        final DeviceRegistry registry = new DeviceRegistry();
+        registry.setName(DEVICE_A, "Car");
+        registry.setHidden(DEVICE_B, true);
+        registry.setName(DEVICE_C, "Living room ♫, \"kitchen\"; \\ etc.");
+        registry.setHidden(DEVICE_C, true);
+
+        final DeviceRegistry decoded = decode(DeviceRegistryFile.encode(registry));
+
+        assertEquals(3, decoded.size());
+        assertEquals("Car", decoded.getName(DEVICE_A));
+        assertFalse(decoded.isHidden(DEVICE_A));
+        assertNull(decoded.getName(DEVICE_B));
+        assertTrue(decoded.isHidden(DEVICE_B));
+        assertEquals(registry.getName(DEVICE_C), decoded.getName(DEVICE_C));
+        assertTrue(decoded.isHidden(DEVICE_C));
+    }
+
+    @Test
+    public void encode_skipsTransientState() throws IOException {
+        final DeviceRegistry registry = new DeviceRegistry();
+        registry.setState(DEVICE_A, 2);
+        registry.setSighting(DEVICE_B, 1000, (short) -40);
+
+        assertEquals(0, decode(DeviceRegistryFile.encode(registry)).size());
+    }
+
+    @Test
+    public void decode_roundTripsLongNames() throws IOException {
+        // Three bytes per character in UTF-8, well past the writeUTF limit.
+        final char[] characters = new char[70000];
+        Arrays.fill(characters, '♫');
+        final String name = new String(characters);
+
+        final DeviceRegistry registry = new DeviceRegistry();
+        registry.setName(DEVICE_A, name);
+
+        assertEquals(name, decode(DeviceRegistryFile.encode(registry)).getName(DEVICE_A));
+    }
+
+    @Test
+    public void decode_readsVersion1() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x41324452);
+        out.writeShort(1);
+        out.writeInt(2);
+        out.writeLong(DEVICE_A);
+        out.writeByte(0x2);
+        out.writeUTF("Car");
+        out.writeLong(DEVICE_B);
+        out.writeByte(0x1);
+
+        final DeviceRegistry decoded = decode(appendChecksum(bytes));
+
+        assertEquals("Car", decoded.getName(DEVICE_A));
+        assertTrue(decoded.isHidden(DEVICE_B));
+    }
+
+    @Test
+    public void decode_rejectsChecksumMismatch() {
+        final DeviceRegistry registry = new DeviceRegistry();
+        registry.setName(DEVICE_A, "Car");
+
+        final byte[] data = DeviceRegistryFile.encode(registry);
+        data[data.length - 9] ^= 1;
+
+        assertDecodeFails(data);
+    }
+
+    @Test
+    public void decode_rejectsTruncatedData() {
+        final DeviceRegistry registry = new DeviceRegistry();
+        registry.setName(DEVICE_A, "Car");
+
+        final byte[] data = DeviceRegistryFile.encode(registry);
+
+        assertDecodeFails(new byte[0]);
+        assertDecodeFails(Arrays.copyOf(data, 12));
+    }
+
+    @Test
+    public void decode_rejectsUnknownVersion() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x41324452);
+        out.writeShort(99);
+        out.writeInt(0);
+
+        assertDecodeFails(appendChecksum(bytes));
+    }
+
+    @Test
+    public void decode_rejectsCorruptNameLength() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x41324452);
+        out.writeShort(2);
+        out.writeInt(1);
+        out.writeLong(DEVICE_A);
+        out.writeByte(0x2);
+        out.writeInt(Integer.MAX_VALUE);
+
+        assertDecodeFails(appendChecksum(bytes));
+    }
+
+    private static DeviceRegistry decode(byte[] data) throws IOException {
+        final DeviceRegistry registry = new DeviceRegistry();
+        DeviceRegistryFile.decode(data, registry);
+        return registry;
+    }
+
+    private static void assertDecodeFails(byte[] data) {
+        try {
+            decode(data);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] appendChecksum(ByteArrayOutputStream bytes) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        new DataOutputStream(bytes).writeLong(crc.getValue());
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,98 @@
+package com.googamaphone.a2dpswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DeviceUriTest {
+    private static final String ADDRESS = "00:43:A8:23:10:F0";
+
+    @Test
+    public void parse_version0() {
+        final DeviceUri uri = DeviceUri.parse("a2dp://connect/" + ADDRESS);
+
+        assertEquals(ADDRESS, uri.getAddress());
+        assertNull(uri.getName());
+    }
+
+    @Test
+    public void parse_version0WithEscapedAddress() {
+        final DeviceUri uri = DeviceUri.parse("a2dp://connect/00%3A43%3AA8%3A23%3A10%3AF0");
+
+        assertEquals(ADDRESS, uri.getAddress());
+    }
+
+    @Test
+    public void parse_version0IgnoresFragment() {
+        final DeviceUri uri = DeviceUri.parse("a2dp://connect/" + ADDRESS + "#tag");
+
+        assertEquals(ADDRESS, uri.getAddress());
+    }
+
+    @Test
+    public void parse_version0RejectsMissingOrInvalidAddress() {
+        assertNull(DeviceUri.parse("a2dp://connect"));
+        assertNull(DeviceUri.parse("a2dp://connect/"));
+        assertNull(DeviceUri.parse("a2dp:connect/" + ADDRESS));
+        assertNull(DeviceUri.parse("a2dp://connect/00:43:a8:23:10:f0"));
+    }
+
+    @Test
+    public void parse_version1() {
+        final DeviceUri uri = DeviceUri.parse(
+                "a2dp://connect?version=1&address=" + ADDRESS + "&name=Car");
+
+        assertEquals(ADDRESS, uri.getAddress());
+        assertEquals("Car", uri.getName());
+    }
+
+    @Test
+    public void parse_version1WithoutName() {
+        final DeviceUri uri = DeviceUri.parse("a2dp://connect?address=" + ADDRESS + "&version=1");
+
+        assertEquals(ADDRESS, uri.getAddress());
+        assertNull(uri.getName());
+    }
+
+    @Test
+    public void parse_version1DecodesName() {
+        final DeviceUri uri = DeviceUri.parse("a2dp://connect?version=1&address=" + ADDRESS
+                + "&name=Living+room%20%E2%99%AB%26more");
+
+        assertEquals("Living room ♫&more", uri.getName());
+    }
+
+    @Test
+    public void parse_version1KeepsMalformedEscapes() {
+        final DeviceUri uri = DeviceUri.parse("a2dp://connect?version=1&address=" + ADDRESS
+                + "&name=100%zz");
+
+        assertEquals("100%zz", uri.getName());
+    }
+
+    @Test
+    public void parse_version1UsesFirstParameter() {
+        final DeviceUri uri = DeviceUri.parse("a2dp://connect?version=1&address=" + ADDRESS
+                + "&name=First&name=Second");
+
+        assertEquals("First", uri.getName());
+    }
+
+    @Test
+    public void parse_version1RejectsMissingOrInvalidAddress() {
+        assertNull(DeviceUri.parse("a2dp://connect?version=1&name=Car"));
+        assertNull(DeviceUri.parse("a2dp://connect?version=1&address=nowhere"));
+    }
+
+    @Test
+    public void parse_rejectsUnknownVersion() {
+        assertNull(DeviceUri.parse("a2dp://connect?version=2&address=" + ADDRESS));
+        assertNull(DeviceUri.parse("a2dp://connect?version=one&address=" + ADDRESS));
+    }
+
+    @Test
+    public void parse_rejectsNull() {
+        assertNull(DeviceUri.parse(null));
+    }
+}
@@ -0,0 +1,60 @@
+package com.googamaphone.a2dpswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class SwitchHistoryTest {
+    private static final long DEVICE_A = 0x0043A82310F0L;
+    private static final long DEVICE_B = 0x123456789ABCL;
+
+    @Test
+    public void record_linksPreviousDeviceAndDuration() {
+        final SwitchHistory history = new SwitchHistory();
+        history.record(DEVICE_A, 10, 0);
+        history.record(DEVICE_B, 11, 90000);
+
+        assertEquals(2, history.size());
+        assertEquals(DEVICE_A, history.deviceIdAt(0));
+        assertEquals(0, history.previousIdAt(0));
+        assertEquals(90, history.durationAt(0));
+        assertEquals(DEVICE_B, history.deviceIdAt(1));
+        assertEquals(DEVICE_A, history.previousIdAt(1));
+        assertEquals(11, history.hourOfWeekAt(1));
+        assertEquals(SwitchHistory.DURATION_UNKNOWN, history.durationAt(1));
+    }
+
+    @Test
+    public void onDisconnected_onlyEndsNewestDevice() {
+        final SwitchHistory history = new SwitchHistory();
+        history.record(DEVICE_A, 10, 0);
+
+        assertFalse(history.onDisconnected(DEVICE_B, 5000));
+        assertTrue(history.onDisconnected(DEVICE_A, 5000));
+        assertFalse(history.onDisconnected(DEVICE_A, 9000));
+        assertEquals(5, history.durationAt(0));
+    }
+
+    @Test
+    public void decode_roundTripsEntries() throws IOException {
+        final SwitchHistory history = new SwitchHistory();
+        history.record(DEVICE_A, 0, 0);
+        history.record(DEVICE_B, SwitchHistory.HOURS_PER_WEEK - 1, 30000);
+        history.onDisconnected(DEVICE_B, 40000);
+
+        final SwitchHistory decoded = new SwitchHistory();
+        decoded.decode(history.encode());
+
+        assertEquals(history.size(), decoded.size());
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals(history.deviceIdAt(i), decoded.deviceIdAt(i));
+            assertEquals(history.previousIdAt(i), decoded.previousIdAt(i));
+            assertEquals(history.hourOfWeekAt(i), decoded.hourOfWeekAt(i));
+            assertEquals(history.durationAt(i), decoded.durationAt(i));
+        }
+    }
+}
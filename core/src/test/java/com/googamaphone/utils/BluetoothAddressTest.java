@@ -0,0 +1,63 @@
+package com.googamaphone.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BluetoothAddressTest {
+    @Test
+    public void getDeviceId_parsesAddress() {
+        assertEquals(0x0043A82310F0L, BluetoothAddress.getDeviceId("00:43:A8:23:10:F0"));
+        assertEquals(0xFFFFFFFFFFFFL, BluetoothAddress.getDeviceId("FF:FF:FF:FF:FF:FF"));
+    }
+
+    @Test
+    public void getDeviceId_acceptsLowerCase() {
+        assertEquals(0x0043A82310F0L, BluetoothAddress.getDeviceId("00:43:a8:23:10:f0"));
+    }
+
+    @Test
+    public void getDeviceId_rejectsMalformedAddresses() {
+        assertEquals(0, BluetoothAddress.getDeviceId(null));
+        assertEquals(0, BluetoothAddress.getDeviceId(""));
+        assertEquals(0, BluetoothAddress.getDeviceId("00:43:A8:23:10"));
+        assertEquals(0, BluetoothAddress.getDeviceId("00-43-A8-23-10-F0"));
+        assertEquals(0, BluetoothAddress.getDeviceId("00:43:A8:23:10:G0"));
+        assertEquals(0, BluetoothAddress.getDeviceId("00:43:A8:23:10:F0:"));
+    }
+
+    @Test
+    public void isValid_requiresUpperCaseHex() {
+        assertTrue(BluetoothAddress.isValid("00:43:A8:23:10:F0"));
+        assertFalse(BluetoothAddress.isValid("00:43:a8:23:10:f0"));
+        assertFalse(BluetoothAddress.isValid("00:43:A8:23:10"));
+        assertFalse(BluetoothAddress.isValid("00:43:A8-23:10:F0"));
+        assertFalse(BluetoothAddress.isValid(null));
+    }
+
+    @Test
+    public void getAddress_padsWithZeroes() {
+        assertEquals("00:00:00:00:00:01", BluetoothAddress.getAddress(1));
+        assertEquals("00:43:A8:23:10:F0", BluetoothAddress.getAddress(0x0043A82310F0L));
+    }
+
+    @Test
+    public void getAddress_roundTripsDeviceIds() {
+        final long[] deviceIds = {
+                0, 1, 0x0043A82310F0L, 0x123456789ABCL, 0xFFFFFFFFFFFFL
+        };
+
+        for (long deviceId : deviceIds) {
+            final String address = BluetoothAddress.getAddress(deviceId);
+            assertTrue(address, BluetoothAddress.isValid(address));
+            assertEquals(deviceId, BluetoothAddress.getDeviceId(address));
+        }
+    }
+
+    @Test
+    public void getLegacyDeviceId_keepsLowBits() {
+        assertEquals(0xA82310F0, BluetoothAddress.getLegacyDeviceId(0x0043A82310F0L));
+    }
+}
@@ -0,0 +1,140 @@
+package com.googamaphone.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class PreferencesCodecTest {
+    /** Characters that names are built from, weighted towards reserved ones. */
+    private static final String NAME_CHARACTERS = "\\\\,,;;ab Z0é♫";
+
+    @Test
+    public void appendEntry_escapesReservedCharacters() {
+        final StringBuilder out = new StringBuilder();
+        PreferencesCodec.appendEntry(out, 12, "a,b;c\\d");
+
+        assertEquals("12,a\\,b\\;c\\\\d;", out.toString());
+    }
+
+    @Test
+    public void parseEntries_roundTripsReservedCharacters() {
+        final Map<Long, String> entries = new LinkedHashMap<Long, String>();
+        entries.put(1L, "");
+        entries.put(2L, ",");
+        entries.put(3L, ";");
+        entries.put(4L, "\\");
+        entries.put(5L, "\\;,\\\\");
+        entries.put(-6L, "trailing\\");
+        entries.put(Long.MAX_VALUE, "max");
+        entries.put(Long.MIN_VALUE + 1, "min");
+
+        assertEquals(entries, parseEntries(encodeEntries(entries)));
+    }
+
+    @Test
+    public void parseEntries_roundTripsRandomNames() {
+        final Random random = new Random(0);
+
+        for (int run = 0; run < 200; run++) {
+            final Map<Long, String> entries = new LinkedHashMap<Long, String>();
+            final int count = random.nextInt(20);
+            for (int i = 0; i < count; i++) {
+                final long key = random.nextLong() >> random.nextInt(64);
+                if (key != Long.MIN_VALUE) {
+                    // Long.MIN_VALUE is reserved for malformed keys.
+                    entries.put(key, randomName(random));
+                }
+            }
+
+            assertEquals(entries, parseEntries(encodeEntries(entries)));
+        }
+    }
+
+    @Test
+    public void parseEntries_skipsMalformedGroups() {
+        final Map<Long, String> expected = new LinkedHashMap<Long, String>();
+        expected.put(3L, "c");
+        expected.put(5L, "e");
+
+        // Missing value, non-numeric key, empty key, then out of range key.
+        assertEquals(expected, parseEntries(
+                "1;x,a;,b;3,c;9223372036854775808,d;-9223372036854775808,f;5,e"));
+    }
+
+    @Test
+    public void parseItems_roundTripsItems() {
+        final long[] items = {
+                0, 1, -1, 0x0043A82310F0L, Long.MAX_VALUE, Long.MIN_VALUE + 1
+        };
+
+        final StringBuilder out = new StringBuilder();
+        for (long item : items) {
+            PreferencesCodec.appendItem(out, item);
+        }
+
+        final List<Long> expected = new ArrayList<Long>();
+        for (long item : items) {
+            expected.add(item);
+        }
+
+        assertEquals(expected, parseItems(out.toString()));
+    }
+
+    @Test
+    public void parseItems_skipsMalformedItems() {
+        final List<Long> expected = new ArrayList<Long>();
+        expected.add(1L);
+        expected.add(4L);
+
+        assertEquals(expected, parseItems("1,,x,-,2.5,4"));
+    }
+
+    private static String randomName(Random random) {
+        final int length = random.nextInt(12);
+        final StringBuilder name = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            name.append(NAME_CHARACTERS.charAt(random.nextInt(NAME_CHARACTERS.length())));
+        }
+
+        return name.toString();
+    }
+
+    private static String encodeEntries(Map<Long, String> entries) {
+        final StringBuilder out = new StringBuilder();
+        for (Map.Entry<Long, String> entry : entries.entrySet()) {
+            PreferencesCodec.appendEntry(out, entry.getKey(), entry.getValue());
+        }
+
+        return out.toString();
+    }
+
+    private static Map<Long, String> parseEntries(String value) {
+        final Map<Long, String> entries = new LinkedHashMap<Long, String>();
+        PreferencesCodec.parseEntries(value, new PreferencesCodec.EntrySink() {
+            @Override
+            public void onEntry(long key, String entryValue) {
+                entries.put(key, entryValue);
+            }
+        });
+
+        return entries;
+    }
+
+    private static List<Long> parseItems(String value) {
+        final List<Long> items = new ArrayList<Long>();
+        PreferencesCodec.parseItems(value, new PreferencesCodec.ItemSink() {
+            @Override
+            public void onItem(long item) {
+                items.add(item);
+            }
+        });
+
+        return items;
+    }
+}
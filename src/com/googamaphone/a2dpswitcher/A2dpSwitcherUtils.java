@@ -16,7 +16,6 @@
 
 package com.googamaphone.a2dpswitcher;
 
-import android.bluetooth.BluetoothAdapter;
 import android.net.Uri;
 import android.util.Pair;
 
@@ -26,51 +25,14 @@ public class A2dpSwitcherUtils {
      *
      * @param uri The URI to parse.
      * @return A pair of {@link String}s representing the device address and name.
+     * @see DeviceUri#parse(String)
      */
     public static Pair<String, String> parseUri(Uri uri) {
-        final String version = uri.getQueryParameter(MainActivity.QUERY_VERSION);
-        if (version == null) {
-            return getAddressVersion0(uri);
-        }
-
-        try {
-            final int versionCode = Integer.parseInt(version);
-            if (versionCode == 1) {
-                return getAddressVersion1(uri);
-            }
-        } catch (NumberFormatException e) {
-            e.printStackTrace();
-        }
-
-        // Invalid version.
-        return null;
-    }
-
-    private static Pair<String, String> getAddressVersion0(Uri uri) {
-        final String path = uri.getPath();
-        if ((path == null) || (path.length() <= 1)) {
-            // Missing address.
+        final DeviceUri deviceUri = DeviceUri.parse(uri.toString());
+        if (deviceUri == null) {
             return null;
         }
 
-        final String address = path.substring(1);
-        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
-            // Invalid address.
-            return null;
-        }
-
-        return new Pair<String, String>(address, null);
-    }
-
-    private static Pair<String, String> getAddressVersion1(Uri uri) {
-        final String address = uri.getQueryParameter(MainActivity.QUERY_ADDRESS);
-        if ((address == null) || !BluetoothAdapter.checkBluetoothAddress(address)) {
-            // Invalid or missing address.
-            return null;
-        }
-
-        final String name = uri.getQueryParameter(MainActivity.QUERY_NAME);
-
-        return new Pair<String, String>(address, name);
+        return new Pair<String, String>(deviceUri.getAddress(), deviceUri.getName());
     }
 }
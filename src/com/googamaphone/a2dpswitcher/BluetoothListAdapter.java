@@ -3,6 +3,7 @@ package com.googamaphone.a2dpswitcher;
 
 import com.googamaphone.compat.BluetoothA2dpCompat;
 import com.googamaphone.utils.BluetoothDeviceUtils;
+import com.googamaphone.utils.RefreshScheduler;
 
 import android.animation.ObjectAnimator;
 import android.bluetooth.BluetoothA2dp;
@@ -15,6 +16,7 @@ import android.content.IntentFilter;
 import android.graphics.PorterDuff.Mode;
 import android.os.Handler;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -26,7 +28,8 @@ import android.widget.ListAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
@@ -65,9 +68,21 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
      */
     private static final long PRESENCE_TIMEOUT = 30000;
 
-    private final ArrayList<BluetoothDevice> mAudioDevices = new ArrayList<BluetoothDevice>();
-    private final HashMap<BluetoothDevice, DeviceMetadata> mMetadata =
-            new HashMap<BluetoothDevice, DeviceMetadata>();
+    /**
+     * Window in milliseconds used to coalesce broadcast-driven refreshes.
+     */
+    private static final long REFRESH_WINDOW = 100;
+
+    /**
+     * Maximum delay in milliseconds between a broadcast and the resulting
+     * refresh.
+     */
+    private static final long REFRESH_MAX_LATENCY = 300;
+
+    private final ArrayList<DeviceSnapshot> mAudioDevices = new ArrayList<DeviceSnapshot>();
+
+    /** When and how strongly each listed device was last seen by discovery. */
+    private final DeviceRegistry mSightings = new DeviceRegistry();
 
     private final Context mContext;
     private final LayoutInflater mLayoutInflater;
@@ -80,8 +95,12 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
     private BluetoothA2dpCompat mAudioProxy;
     private OnClickListener mSettingsClickListener;
 
+    /** Devices to list first, in order, or {@code null}. */
+    private long[] mDeviceOrder;
+
     private boolean mDiscoveryEnabled;
     private boolean mShowAllDevices;
+    private boolean mHasLoaded;
 
     public BluetoothListAdapter(Context context, int viewResId, int labelResId, int statusResId) {
         mContext = context;
@@ -108,7 +127,7 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
     @Override
     public BluetoothDevice getItem(int position) {
         // TODO: Error handling.
-        return mAudioDevices.get(position);
+        return mAudioDevices.get(position).device;
     }
 
     @Override
@@ -143,28 +162,17 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
         final TextView statusView = (TextView) convertView.findViewById(mStatusResId);
         final View presenceIcon = convertView.findViewById(R.id.presence_indicator);
 
-        final BluetoothDevice device = getItem(position);
-        final String deviceName = getDeviceName(position);
-        final int state = mAudioProxy.getConnectionState(device);
-        final int statusResId = getResourceForDeviceState(state);
+        final DeviceSnapshot snapshot = mAudioDevices.get(position);
+        final BluetoothDevice device = snapshot.device;
 
         // Ensure settings button has correct tag.
         convertView.setTag(R.id.tag_device, device);
         convertView.findViewById(R.id.device_settings).setTag(R.id.tag_device, device);
 
-        labelView.setText(deviceName);
-        statusView.setText(statusResId);
+        labelView.setText(snapshot.name);
+        statusView.setText(snapshot.status);
 
-        if (isDevicePresent(device)) {
-            final DeviceMetadata metadata = mMetadata.get(device);
-            final short rssi = metadata.rssi;
-            if (rssi != Short.MIN_VALUE) {
-                final Context context = parent.getContext();
-                statusView.append(" " + context.getString(R.string.signal_strength, rssi));
-            }
-        }
-
-        if (mShowAllDevices && !isDeviceVisible(device)) {
+        if (mShowAllDevices && !snapshot.visible) {
             labelView.setAlpha(0.5f);
             statusView.setAlpha(0.5f);
         } else {
@@ -172,16 +180,7 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
             statusView.setAlpha(1);
         }
 
-        final int animType;
-        if (isStatePending(state)) {
-            animType = STATE_PENDING;
-        } else if (state == BluetoothA2dp.STATE_CONNECTED) {
-            animType = STATE_CONNECTED;
-        } else if (isStatePresent(state) || isDevicePresent(device)) {
-            animType = STATE_PRESENT;
-        } else {
-            animType = STATE_UNKNOWN;
-        }
+        final int animType = snapshot.animType;
 
         final Integer oldAnimType = (Integer) convertView.getTag(R.id.anim_type);
         if (oldAnimType == null || oldAnimType != animType) {
@@ -280,6 +279,18 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
         }
     }
 
+    /**
+     * Sets the devices to list first, e.g. in order of how likely the user is
+     * to pick them. Other devices follow in the order reported by the audio
+     * proxy. Takes effect on the next call to {@link #reloadDevices()}.
+     *
+     * @param deviceIds Device IDs in the order they should be listed, or
+     *            {@code null} to use the audio proxy's order.
+     */
+    public void setDeviceOrder(long[] deviceIds) {
+        mDeviceOrder = deviceIds;
+    }
+
     /**
      * Returns whether this adapter is showing all devices.
      *
@@ -308,6 +319,8 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
      */
     public void unregister() {
         mContext.unregisterReceiver(mBroadcastReceiver);
+        mHandler.removeCallbacks(mPresenceRunnable);
+        mReloadScheduler.cancel();
     }
 
     /**
@@ -318,7 +331,7 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
      * @return The display name for the device.
      */
     public String getDeviceName(int position) {
-        return getDeviceName(getItem(position));
+        return mAudioDevices.get(position).name;
     }
 
     /**
@@ -348,64 +361,246 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
         return true;
     }
 
+    /**
+     * Internal method used to determine the A2DP connection state for a
+     * device.
+     * <p/>
+     * Default implementation queries the audio proxy. Override this method to
+     * supply connection states from another source.
+     *
+     * @param device The device to query.
+     * @return The connection state of the device.
+     */
+    protected int getConnectionState(BluetoothDevice device) {
+        return mAudioProxy.getConnectionState(device);
+    }
+
+    /**
+     * Reloads the list of devices and computes the displayed state of each
+     * device in a single pass. Rows are bound from the resulting snapshots
+     * without querying the audio proxy.
+     * <p/>
+     * Observers are only notified if the displayed list changed.
+     */
     public void reloadDevices() {
-        mAudioDevices.clear();
+        mReloadScheduler.cancel();
 
         if (mAudioProxy == null) {
-            notifyDataSetChanged();
+            mAudioDevices.clear();
+            mNotifyScheduler.runNow();
             return;
         }
 
         final List<BluetoothDevice> devices = mAudioProxy
                 .getDevicesMatchingConnectionStates(ALL_A2DP_STATES);
+        final ArrayList<DeviceSnapshot> snapshots = new ArrayList<DeviceSnapshot>(devices.size());
+        final long now = SystemClock.uptimeMillis();
 
-        if (mShowAllDevices) {
-            mAudioDevices.addAll(devices);
-        } else {
-            for (BluetoothDevice device : devices) {
-                if (isDeviceVisible(device)) {
-                    mAudioDevices.add(device);
-                }
+        for (BluetoothDevice device : devices) {
+            final boolean visible = isDeviceVisible(device);
+            if (mShowAllDevices || visible) {
+                snapshots.add(createSnapshot(device, visible, getConnectionState(device), now));
             }
         }
 
-        notifyDataSetChanged();
+        if ((mDeviceOrder != null) && (mDeviceOrder.length > 0)) {
+            // The sort is stable, so unordered devices keep their order.
+            Collections.sort(snapshots, mDeviceOrderComparator);
+        }
+
+        boolean changed = !mHasLoaded || (snapshots.size() != mAudioDevices.size());
+        for (int i = 0; !changed && (i < snapshots.size()); i++) {
+            changed = !snapshots.get(i).isDisplayedAs(mAudioDevices.get(i));
+        }
+
+        mAudioDevices.clear();
+        mAudioDevices.addAll(snapshots);
+        mHasLoaded = true;
+
+        if (changed) {
+            mNotifyScheduler.runNow();
+        }
     }
 
-    private void onDeviceFound(BluetoothDevice device, short rssi) {
-        if (!mAudioDevices.contains(device)) {
-            return;
+    /**
+     * Applies a single change reported by the device management service,
+     * updating only the affected row where possible.
+     *
+     * @param change The change to apply.
+     */
+    public void applyDeviceChange(DeviceChange change) {
+        final int index = indexOfDevice(change.getDeviceId());
+
+        switch (change.getType()) {
+            case DeviceChange.TYPE_STATE_CHANGED:
+                if (index >= 0) {
+                    updateDevice(index, mAudioDevices.get(index).visible, change.getState());
+                } else if (change.getState() != BluetoothA2dpCompat.STATE_DISCONNECTED) {
+                    // The device may need to be added to the list.
+                    mReloadScheduler.schedule();
+                }
+                break;
+            case DeviceChange.TYPE_RENAMED:
+                if (index >= 0) {
+                    final DeviceSnapshot snapshot = mAudioDevices.get(index);
+                    updateDevice(index, snapshot.visible, snapshot.state);
+                }
+                break;
+            case DeviceChange.TYPE_VISIBILITY_CHANGED:
+                if (mShowAllDevices && (index >= 0)) {
+                    updateDevice(index, change.isVisible(), mAudioDevices.get(index).state);
+                } else {
+                    // The device needs to be added to or removed from the list.
+                    mReloadScheduler.schedule();
+                }
+                break;
         }
+    }
 
-        final DeviceMetadata metadata;
-        if (mMetadata.containsKey(device)) {
-            metadata = mMetadata.get(device);
-        } else {
-            metadata = new DeviceMetadata();
-            mMetadata.put(device, metadata);
+    /**
+     * Recomputes the snapshot for a single device, notifying observers only
+     * if its displayed state changed.
+     *
+     * @param device The device to update.
+     * @param state The connection state of the device.
+     * @return {@code false} if the device is not in the list.
+     */
+    private boolean updateDevice(BluetoothDevice device, int state) {
+        final int index = indexOfDevice(device);
+        if (index < 0) {
+            return false;
         }
 
-        metadata.lastSeen = SystemClock.uptimeMillis();
-        metadata.rssi = rssi;
+        updateDevice(index, mAudioDevices.get(index).visible, state);
+        return true;
+    }
 
-        reloadDevices();
+    private void updateDevice(int index, boolean visible, int state) {
+        final DeviceSnapshot oldSnapshot = mAudioDevices.get(index);
+        final DeviceSnapshot newSnapshot = createSnapshot(oldSnapshot.device, visible, state,
+                SystemClock.uptimeMillis());
+
+        if (!newSnapshot.isDisplayedAs(oldSnapshot)) {
+            mAudioDevices.set(index, newSnapshot);
+            mNotifyScheduler.schedule();
+        }
+    }
+
+    /**
+     * Recomputes device presence for every snapshot without reloading the
+     * list of devices, notifying observers only if something changed.
+     */
+    private void refreshPresence() {
+        final long now = SystemClock.uptimeMillis();
+        boolean changed = false;
+
+        for (int i = 0; i < mAudioDevices.size(); i++) {
+            final DeviceSnapshot oldSnapshot = mAudioDevices.get(i);
+            final DeviceSnapshot newSnapshot = createSnapshot(oldSnapshot.device,
+                    oldSnapshot.visible, oldSnapshot.state, now);
+            if (!newSnapshot.isDisplayedAs(oldSnapshot)) {
+                mAudioDevices.set(i, newSnapshot);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            mNotifyScheduler.schedule();
+        }
     }
 
     /**
-     * Returns whether the specified device has recently (e.g. within
-     * {@link #PRESENCE_TIMEOUT} milliseconds) advertised its presence.
+     * Computes the displayed state of a device.
      *
-     * @param device The device to query.
-     * @return {@code true} if the device is present.
+     * @param device The device to snapshot.
+     * @param visible Whether the device is visible.
+     * @param state The connection state of the device.
+     * @param now The current uptime, used to determine presence.
+     * @return An immutable snapshot of the device's displayed state.
      */
-    private boolean isDevicePresent(BluetoothDevice device) {
-        if (!mMetadata.containsKey(device)) {
-            return false;
+    private DeviceSnapshot createSnapshot(BluetoothDevice device, boolean visible, int state,
+                                          long now) {
+        final int index = mSightings.indexOfKey(BluetoothDeviceUtils.getDeviceId(device));
+        final boolean present = (index >= 0)
+                && ((now - mSightings.lastSeenAt(index)) < PRESENCE_TIMEOUT);
+        final short rssi = present ? mSightings.rssiAt(index) : DeviceRegistry.RSSI_UNKNOWN;
+
+        final String status;
+        if (rssi != DeviceRegistry.RSSI_UNKNOWN) {
+            status = mContext.getString(getResourceForDeviceState(state)) + " "
+                    + mContext.getString(R.string.signal_strength, rssi);
+        } else {
+            status = mContext.getString(getResourceForDeviceState(state));
+        }
+
+        final int animType;
+        if (isStatePending(state)) {
+            animType = STATE_PENDING;
+        } else if (state == BluetoothA2dp.STATE_CONNECTED) {
+            animType = STATE_CONNECTED;
+        } else if (isStatePresent(state) || present) {
+            animType = STATE_PRESENT;
+        } else {
+            animType = STATE_UNKNOWN;
         }
 
-        final DeviceMetadata metadata = mMetadata.get(device);
-        final long elapsed = (SystemClock.uptimeMillis() - metadata.lastSeen);
-        return (elapsed < PRESENCE_TIMEOUT);
+        return new DeviceSnapshot(device, getDeviceName(device), status, state, visible, present,
+                rssi, animType);
+    }
+
+    private int indexOfDevice(BluetoothDevice device) {
+        for (int i = 0; i < mAudioDevices.size(); i++) {
+            if (mAudioDevices.get(i).device.equals(device)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int indexOfDevice(long deviceId) {
+        for (int i = 0; i < mAudioDevices.size(); i++) {
+            if (mAudioDevices.get(i).deviceId == deviceId) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void onDeviceFound(BluetoothDevice device, short rssi) {
+        final int index = indexOfDevice(device);
+        if (index < 0) {
+            return;
+        }
+
+        mSightings.setSighting(BluetoothDeviceUtils.getDeviceId(device),
+                SystemClock.uptimeMillis(), rssi);
+
+        updateDevice(device, mAudioDevices.get(index).state);
+
+        // Make sure the presence indicator is cleared once the device goes stale.
+        mHandler.removeCallbacks(mPresenceRunnable);
+        mHandler.postDelayed(mPresenceRunnable, PRESENCE_TIMEOUT);
+    }
+
+    private void onConnectionStateChanged(Intent intent) {
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null) {
+            mReloadScheduler.schedule();
+            return;
+        }
+
+        final int state = intent.getIntExtra(BluetoothA2dpCompat.EXTRA_STATE,
+                BluetoothA2dpCompat.STATE_DISCONNECTED);
+        if (updateDevice(device, state)) {
+            return;
+        }
+
+        // The device isn't listed yet. Only reload if it would be shown.
+        if (mShowAllDevices || isDeviceVisible(device)) {
+            mReloadScheduler.schedule();
+        }
     }
 
     /**
@@ -471,15 +666,41 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
 
     private final Handler mHandler = new Handler();
 
+    /**
+     * Coalesces row updates into a single call to
+     * {@link #notifyDataSetChanged()}. Only used when the number of rows is
+     * unchanged, since list views require count changes to be notified
+     * immediately.
+     */
+    private final RefreshScheduler mNotifyScheduler = new RefreshScheduler(mHandler,
+            new Runnable() {
+                @Override
+                public void run() {
+                    notifyDataSetChanged();
+                }
+            }, REFRESH_WINDOW, REFRESH_MAX_LATENCY);
+
+    /**
+     * Coalesces broadcast-driven calls to {@link #reloadDevices()}.
+     */
+    private final RefreshScheduler mReloadScheduler = new RefreshScheduler(mHandler,
+            new Runnable() {
+                @Override
+                public void run() {
+                    reloadDevices();
+                }
+            }, REFRESH_WINDOW, REFRESH_MAX_LATENCY);
+
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
 
-            if (BluetoothA2dpCompat.ACTION_CONNECTION_STATE_CHANGED.equals(action)
-                    || BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)
+            if (BluetoothA2dpCompat.ACTION_CONNECTION_STATE_CHANGED.equals(action)) {
+                onConnectionStateChanged(intent);
+            } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)
                     || BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                reloadDevices();
+                mReloadScheduler.schedule();
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 // When discovery is enabled, restart discovery after a short delay.
                 if (mDiscoveryEnabled) {
@@ -489,7 +710,7 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
                 final BluetoothDevice device = intent
                         .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 final short rssi = intent.getShortExtra(
-                        BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                        BluetoothDevice.EXTRA_RSSI, DeviceRegistry.RSSI_UNKNOWN);
                 if (device != null) {
                     onDeviceFound(device, rssi);
                 }
@@ -497,6 +718,26 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
         }
     };
 
+    private final Comparator<DeviceSnapshot> mDeviceOrderComparator =
+            new Comparator<DeviceSnapshot>() {
+                @Override
+                public int compare(DeviceSnapshot lhs, DeviceSnapshot rhs) {
+                    final int lhsRank = getRank(lhs.deviceId);
+                    final int rhsRank = getRank(rhs.deviceId);
+                    return (lhsRank < rhsRank) ? -1 : ((lhsRank > rhsRank) ? 1 : 0);
+                }
+
+                private int getRank(long deviceId) {
+                    for (int i = 0; i < mDeviceOrder.length; i++) {
+                        if (mDeviceOrder[i] == deviceId) {
+                            return i;
+                        }
+                    }
+
+                    return Integer.MAX_VALUE;
+                }
+            };
+
     private final Runnable mDiscoveryRunnable = new Runnable() {
         @Override
         public void run() {
@@ -504,8 +745,53 @@ public class BluetoothListAdapter extends BaseAdapter implements ListAdapter {
         }
     };
 
-    private static class DeviceMetadata {
-        long lastSeen;
-        short rssi;
+    private final Runnable mPresenceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refreshPresence();
+        }
+    };
+
+    /**
+     * Immutable snapshot of the displayed state for a single device.
+     */
+    private static class DeviceSnapshot {
+        final BluetoothDevice device;
+        final long deviceId;
+        final String name;
+        final String status;
+        final int state;
+        final boolean visible;
+        final boolean present;
+        final short rssi;
+        final int animType;
+
+        DeviceSnapshot(BluetoothDevice device, String name, String status, int state,
+                       boolean visible, boolean present, short rssi, int animType) {
+            this.device = device;
+            this.deviceId = BluetoothDeviceUtils.getDeviceId(device);
+            this.name = name;
+            this.status = status;
+            this.state = state;
+            this.visible = visible;
+            this.present = present;
+            this.rssi = rssi;
+            this.animType = animType;
+        }
+
+        /**
+         * Returns whether this snapshot would be displayed identically to
+         * another snapshot.
+         *
+         * @param other The snapshot to compare against.
+         * @return {@code true} if both snapshots display the same output.
+         */
+        boolean isDisplayedAs(DeviceSnapshot other) {
+            return device.equals(other.device)
+                    && TextUtils.equals(name, other.name)
+                    && status.equals(other.status)
+                    && (visible == other.visible)
+                    && (animType == other.animType);
+        }
     }
 }
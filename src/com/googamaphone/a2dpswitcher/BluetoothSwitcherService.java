@@ -3,8 +3,12 @@ package com.googamaphone.a2dpswitcher;
 
 import com.googamaphone.compat.BluetoothA2dpCompat;
 import com.googamaphone.compat.BluetoothA2dpCompat.BluetoothA2dpCompatCallback;
+import com.googamaphone.compat.BluetoothDeviceCompatUtils;
 import com.googamaphone.utils.BluetoothDeviceUtils;
+import com.googamaphone.utils.DumpFormatter;
 import com.googamaphone.utils.PreferencesUtils;
+import com.googamaphone.utils.PreferencesWriter;
+import com.googamaphone.utils.RefreshScheduler;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -18,22 +22,60 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.support.v4.util.AtomicFile;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
 import android.util.SparseArray;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class BluetoothSwitcherService extends Service {
+    private static final String TAG = BluetoothSwitcherService.class.getSimpleName();
+
+    /** Legacy hidden devices, stored as preferences before the registry file. */
+    public static final String PREF_HIDDEN_DEVICES = "hiddenDevices";
+
+    /** Legacy custom names, stored as preferences before the registry file. */
+    public static final String PREF_DEVICE_NAMES = "deviceNames";
+
+    public static final String PREF_NOTIFY = "show_notification";
+
+    /** Legacy hidden devices, keyed by truncated 32-bit device ID. */
     public static final String PREF_HIDDEN = "hidden";
+
+    /** Legacy custom names, keyed by truncated 32-bit device ID. */
     public static final String PREF_CUSTOM_NAMES = "customNames";
-    public static final String PREF_NOTIFY = "show_notification";
 
     public static final boolean PREF_NOTIFY_DEFAULT = true;
 
+    /**
+     * Whether switches connect the new device before dropping the old one.
+     * Only settable through {@link #dump}, since the platform still drops the
+     * old device first on most stacks.
+     */
+    public static final String PREF_FAST_HANDOVER = "fast_handover";
+
+    public static final boolean PREF_FAST_HANDOVER_DEFAULT = false;
+
     private static final int[] STATES_CONNECTED = new int[]{
             BluetoothA2dpCompat.STATE_CONNECTING,
             BluetoothA2dpCompat.STATE_CONNECTED,
@@ -41,34 +83,204 @@ public class BluetoothSwitcherService extends Service {
             BluetoothA2dpCompat.STATE_PLAYING
     };
 
-    private final DeviceManagementBinder mBinder = new DeviceManagementBinder(this);
-    private final SparseArray<String> mCustomDeviceNames = new SparseArray<String>();
-    private final TreeSet<Integer> mHiddenDevices = new TreeSet<Integer>();
+    /**
+     * Window in milliseconds used to coalesce broadcast-driven notification
+     * updates.
+     */
+    private static final long NOTIFICATION_REFRESH_WINDOW = 150;
+
+    /**
+     * Maximum delay in milliseconds between a broadcast and the resulting
+     * notification update.
+     */
+    private static final long NOTIFICATION_REFRESH_MAX_LATENCY = 500;
+
+    /**
+     * Delay in milliseconds used to collect preference changes into a single
+     * write.
+     */
+    private static final long PREFERENCES_WRITE_DELAY = 1000;
+
+    /**
+     * Dirty key used to schedule a write of the device registry file alongside
+     * the shared preferences.
+     */
+    private static final String KEY_REGISTRY_FILE = DeviceRegistryFile.FILE_NAME;
+
+    /**
+     * Dirty key used to schedule a write of the switch history file alongside
+     * the shared preferences.
+     */
+    private static final String KEY_HISTORY_FILE = SwitchHistory.FILE_NAME;
+
+    /**
+     * Maximum time in milliseconds that a binder call will wait for settings
+     * to finish loading.
+     */
+    private static final long SETTINGS_LOAD_TIMEOUT = 500;
+
+    /**
+     * Time in milliseconds for which the result of disconnecting all devices
+     * is shown in the notification.
+     */
+    private static final long BATCH_RESULT_TIMEOUT = 5000;
+
+    /**
+     * Minimum time in milliseconds between discovery passes looking for the
+     * device the user is predicted to switch to next.
+     */
+    private static final long PREDISCOVERY_INTERVAL = 10 * 60 * 1000;
+
+    private static final int[] STATES_ACTIVE = new int[]{
+            BluetoothA2dpCompat.STATE_CONNECTING,
+            BluetoothA2dpCompat.STATE_CONNECTED,
+            BluetoothA2dpCompat.STATE_PLAYING
+    };
 
+    private final DeviceManagementBinder mBinder = new DeviceManagementBinder(this);
+    private final Handler mHandler = new Handler();
+
+    /**
+     * Custom names, visibility and last known A2DP connection state for each
+     * device. Connection states are seeded once from the audio proxy, then kept
+     * up to date from connection state broadcasts.
+     */
+    private final DeviceRegistry mRegistry = new DeviceRegistry();
+
+    /** Time taken by each phase of device switches. */
+    private final SwitchTracer mSwitchTracer = new SwitchTracer();
+
+    /** Audio gap during device switches, and which devices are nearby. */
+    private final HandoverTracker mHandoverTracker = new HandoverTracker();
+
+    /** Devices the user switched to, and when. */
+    private final SwitchHistory mSwitchHistory = new SwitchHistory();
+    private final SwitchPredictor mSwitchPredictor = new SwitchPredictor();
+
+    /** Audio service call statistics, or {@code null} if not enabled. */
+    private ProxyCallStats mProxyCallStats;
+
+    /** Drives connection requests from every caller. */
+    private ConnectionStateMachine mConnectionStateMachine;
+
+    /**
+     * Settings stored by older versions under truncated 32-bit device IDs.
+     * Entries are moved to the registry for every bonded device once the
+     * adapter is on, or earlier if a matching device is seen first.
+     */
+    private final SparseArray<String> mLegacyDeviceNames = new SparseArray<String>();
+    private final TreeSet<Integer> mLegacyHiddenDevices = new TreeSet<Integer>();
+
+    /** Released once settings have been loaded on the background thread. */
+    private final CountDownLatch mSettingsLatch = new CountDownLatch(1);
+
+    /** Settings loaded on the background thread, waiting to be adopted. */
+    private volatile LoadedSettings mLoadedSettings;
+
+    private StartupTimings mStartupTimings;
+    private WarmStartSnapshot mWarmStartSnapshot;
+    private PreferencesWriter mPreferencesWriter;
+    private AtomicFile mRegistryFile;
+    private AtomicFile mHistoryFile;
     private Notification.Builder mNotificationBuilder;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothA2dpCompat mAudioProxy;
 
-    private boolean mShowNotification;
+    private boolean mShowNotification = PREF_NOTIFY_DEFAULT;
+    private boolean mFastHandover = PREF_FAST_HANDOVER_DEFAULT;
     private boolean mIsConnectingToProxy;
 
+    /** Whether settings have been adopted on the main thread. */
+    private boolean mHasSettings;
+
+    /** Whether {@link #onDestroy} is running. */
+    private boolean mIsDestroying;
+
+    /** Whether a registry write was requested before settings were adopted. */
+    private boolean mHasDeferredRegistryWrite;
+
+    /** Whether a history write was requested before settings were adopted. */
+    private boolean mHasDeferredHistoryWrite;
+
+    /** Whether the notification setting was changed before settings were adopted. */
+    private boolean mHasNotifyOverride;
+
+    /** Whether the handover setting was changed before settings were adopted. */
+    private boolean mHasHandoverOverride;
+
+    /**
+     * The devices being switched from and to in a fast handover, or 0. The
+     * old device is disconnected once the new device has connected.
+     */
+    private long mHandoverSourceId;
+    private long mHandoverTargetId;
+
+    /** Result of the last batch disconnect, shown in the notification. */
+    private String mBatchResult;
+
+    /** The predicted device that discovery is looking for, or 0. */
+    private long mPrediscoveryId;
+
+    /** Whether the discovery pass in progress was started by this service. */
+    private boolean mIsPrediscovering;
+    private long mLastPrediscoveryTime = -1;
+    private int mPrediscoveryCount;
+
+    /** Diagnostic counters, reported by {@link #dump}. */
+    private int mBroadcastCount;
+    private int mSeedCount;
+    private int mProxyCallCount;
+
+    /**
+     * Starts the service in stages so that the receiver and a placeholder
+     * notification are up as early as possible. Settings are loaded on the
+     * preferences thread while the audio proxy connects.
+     */
     @Override
     public void onCreate() {
-        loadPreferences();
+        mStartupTimings = new StartupTimings(SystemClock.elapsedRealtime());
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
-        createNotification();
+        mConnectionStateMachine = new ConnectionStateMachine(mConnectionBackend);
+        mConnectionStateMachine.setListener(mConnectionListener);
 
         final IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
+        filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
         filter.addAction(BluetoothA2dpCompat.ACTION_CONNECTION_STATE_CHANGED);
         registerReceiver(mReceiver, filter);
+        markStartupStage(StartupTimings.STAGE_RECEIVER_REGISTERED);
+
+        mWarmStartSnapshot = new WarmStartSnapshot(this);
+
+        createNotification();
+        updateNotification();
+        markStartupStage(StartupTimings.STAGE_PLACEHOLDER_SHOWN);
+
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mPreferencesWriter = new PreferencesWriter(prefs, mPreferencesSource,
+                PREFERENCES_WRITE_DELAY);
+        mRegistryFile = new AtomicFile(new File(getFilesDir(), DeviceRegistryFile.FILE_NAME));
+        mHistoryFile = new AtomicFile(new File(getFilesDir(), SwitchHistory.FILE_NAME));
+        mPreferencesWriter.execute(mLoadSettingsRunnable);
 
         connectAudioProxy();
     }
 
+    private void markStartupStage(int stage) {
+        final boolean wasComplete = mStartupTimings.isComplete();
+        mStartupTimings.mark(stage, SystemClock.elapsedRealtime());
+
+        if (!wasComplete && mStartupTimings.isComplete()) {
+            Log.d(TAG, "Startup timings: " + mStartupTimings);
+        }
+    }
+
     private void connectAudioProxy() {
         if ((mAudioProxy != null) || mIsConnectingToProxy) {
             // Audio proxy is already connected or is connecting.
@@ -80,13 +292,30 @@ public class BluetoothSwitcherService extends Service {
             return;
         }
 
-        mIsConnectingToProxy = true;
-        BluetoothA2dpCompat.obtain(this, mAudioProxyCallback);
+        mIsConnectingToProxy = BluetoothA2dpCompat.obtain(this, mAudioProxyCallback);
     }
 
     @Override
     public void onDestroy() {
-        savePreferences();
+        mIsDestroying = true;
+
+        setProxyCallStatsEnabledInternal(false);
+        mNotificationScheduler.cancel();
+        mHandler.removeCallbacks(mConnectionDeadlineRunnable);
+        mHandler.removeCallbacks(mClearBatchResultRunnable);
+
+        // Registry and history writes requested while settings were loading
+        // are deferred until settings are adopted, so adopt them now for
+        // shutdown to flush.
+        awaitSettings();
+        if (!mHasSettings && (mHasDeferredRegistryWrite || mHasDeferredHistoryWrite)) {
+            Log.w(TAG, "Dropping device registry and history changes made while loading");
+        }
+
+        mPreferencesWriter.shutdown();
+
+        // Settings were adopted above or are no longer needed.
+        mHandler.removeCallbacks(mAdoptSettingsRunnable);
 
         unregisterReceiver(mReceiver);
 
@@ -100,6 +329,130 @@ public class BluetoothSwitcherService extends Service {
         return mBinder;
     }
 
+    /**
+     * Dumps internal state for diagnostics. Pass {@code --checkin} for
+     * machine-parseable output, for example:
+     * <pre>
+     * adb shell dumpsys activity service .BluetoothSwitcherService --checkin
+     * </pre>
+     * Pass {@code --ipc-stats-on} or {@code --ipc-stats-off} to enable or
+     * disable audio service call statistics. Pass {@code --fast-handover-on}
+     * or {@code --fast-handover-off} to enable or disable the experimental
+     * fast handover mode, which persists across restarts and takes effect
+     * after the dump.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        boolean checkin = false;
+        for (String arg : args) {
+            if ("--checkin".equals(arg) || "-c".equals(arg)) {
+                checkin = true;
+            } else if ("--ipc-stats-on".equals(arg)) {
+                setProxyCallStatsEnabledInternal(true);
+            } else if ("--ipc-stats-off".equals(arg)) {
+                setProxyCallStatsEnabledInternal(false);
+            } else if ("--fast-handover-on".equals(arg) || "--fast-handover-off".equals(arg)) {
+                final boolean enabled = "--fast-handover-on".equals(arg);
+
+                // Settings are only changed on the main thread.
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setFastHandoverInternal(enabled);
+                    }
+                });
+            }
+        }
+
+        final DumpFormatter dump = new DumpFormatter(writer, checkin);
+
+        dump.section("service");
+        dump.field("settingsLoaded", mHasSettings);
+        dump.field("showNotification", mShowNotification);
+        dump.field("fastHandover", mFastHandover);
+        dump.field("startup", mStartupTimings);
+        dump.field("warmStartValid", mWarmStartSnapshot.isValid());
+        dump.field("warmStartDevice", BluetoothDeviceUtils.getAddress(
+                mWarmStartSnapshot.getDeviceId()));
+
+        dump.section("proxy");
+        dump.field("adapterPresent", mBluetoothAdapter != null);
+        dump.field("adapterEnabled", (mBluetoothAdapter != null) && mBluetoothAdapter.isEnabled());
+        dump.field("connected", mAudioProxy != null);
+        dump.field("connecting", mIsConnectingToProxy);
+        dump.field("broadcasts", mBroadcastCount);
+        dump.field("seeds", mSeedCount);
+        dump.field("proxyCalls", mProxyCallCount);
+
+        dump.section("listeners");
+        mBinder.dump(dump);
+
+        dump.section("refresh");
+        dump.field("notificationPending", mNotificationScheduler.isPending());
+        dump.field("notificationRequests", mNotificationScheduler.getRequestCount());
+        dump.field("notificationCoalesced", mNotificationScheduler.getCoalescedCount());
+        dump.field("notificationExecuted", mNotificationScheduler.getExecutedCount());
+
+        dump.section("prefs");
+        dump.field("queueDepth", mPreferencesWriter.getQueueDepth());
+        dump.field("deferredRegistryWrite", mHasDeferredRegistryWrite);
+        dump.field("deferredHistoryWrite", mHasDeferredHistoryWrite);
+        dump.field("legacyNames", mLegacyDeviceNames.size());
+        dump.field("legacyHidden", mLegacyHiddenDevices.size());
+
+        dump.section("devices");
+        dump.field("count", mRegistry.size());
+        for (int i = 0; i < mRegistry.size(); i++) {
+            dump.row(BluetoothDeviceUtils.getAddress(mRegistry.keyAt(i)), mRegistry.stateAt(i),
+                    mRegistry.isHiddenAt(i) ? "hidden" : "visible", mRegistry.nameAt(i));
+        }
+
+        dump.section("latency");
+        mSwitchTracer.dump(dump);
+
+        dump.section("requests");
+        mConnectionStateMachine.dump(dump);
+
+        dump.section("handover");
+        dump.field("source", BluetoothDeviceUtils.getAddress(mHandoverSourceId));
+        dump.field("target", BluetoothDeviceUtils.getAddress(mHandoverTargetId));
+        mHandoverTracker.dump(dump);
+
+        dump.section("history");
+        dump.field("entries", mSwitchHistory.size());
+        dump.field("prediscoveries", mPrediscoveryCount);
+        dump.field("prediscoveryTarget", BluetoothDeviceUtils.getAddress(mPrediscoveryId));
+        if (mHasSettings) {
+            for (long deviceId : getPredictedDevicesInternal()) {
+                dump.row(BluetoothDeviceUtils.getAddress(deviceId),
+                        mSwitchPredictor.getScore(deviceId));
+            }
+        }
+
+        dump.section("ipc");
+        dump.field("enabled", mProxyCallStats != null);
+        if (mProxyCallStats != null) {
+            mProxyCallStats.dump(dump);
+        }
+    }
+
+    /**
+     * Enables or disables per-method and per-caller statistics for calls to
+     * the audio service. Disabling discards collected statistics.
+     */
+    private void setProxyCallStatsEnabledInternal(boolean enabled) {
+        if (enabled == (mProxyCallStats != null)) {
+            return;
+        }
+
+        mProxyCallStats = enabled ? new ProxyCallStats() : null;
+        BluetoothA2dpCompat.setCallObserver(mProxyCallStats);
+    }
+
+    private ProxyCallStats getProxyCallStatsInternal() {
+        return mProxyCallStats;
+    }
+
     private void createNotification() {
         final Intent intent = new Intent(this, MainActivity.class);
         final PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, 0);
@@ -128,6 +481,16 @@ public class BluetoothSwitcherService extends Service {
             mNotificationBuilder.setContentTitle(getString(R.string.notify_bluetooth_disabled));
             mNotificationBuilder.setContentText(null);
             mNotificationBuilder.setSmallIcon(R.drawable.ic_stat_switcher_error);
+        } else if (!mHasSettings || mIsConnectingToProxy) {
+            // The connected device isn't known yet, so show the last known
+            // state until the audio proxy and device names are available.
+            if (mWarmStartSnapshot.isValid()) {
+                setNotificationDevice(mWarmStartSnapshot.getDeviceName());
+            } else {
+                mNotificationBuilder.setContentTitle(getString(R.string.notify_starting));
+                mNotificationBuilder.setContentText(null);
+                mNotificationBuilder.setSmallIcon(R.drawable.ic_stat_switcher_disconnected);
+            }
         } else if (mAudioProxy == null) {
             // Failed to connect to the audio service.
             mNotificationBuilder.setContentTitle(getString(R.string.notify_missing_audio_service));
@@ -136,23 +499,44 @@ public class BluetoothSwitcherService extends Service {
         } else {
             final BluetoothDevice device = getConnectedDevice();
             if (device != null) {
-                mNotificationBuilder.setContentTitle(mBinder.getDeviceName(device));
-                mNotificationBuilder.setSmallIcon(R.drawable.ic_stat_switcher_connected);
+                final String name = mBinder.getDeviceName(device);
+                setNotificationDevice(name);
+                mWarmStartSnapshot.update(BluetoothDeviceUtils.getDeviceId(device), name);
             } else {
-                mNotificationBuilder.setContentTitle(getString(R.string.no_device));
-                mNotificationBuilder.setSmallIcon(R.drawable.ic_stat_switcher_disconnected);
+                setNotificationDevice(null);
+                mWarmStartSnapshot.update(0, null);
             }
-            mNotificationBuilder.setContentText(getString(R.string.touch_to_change));
         }
 
         startForeground(R.id.notify_switcher, mNotificationBuilder.getNotification());
     }
 
+    /**
+     * Sets the notification content for a connected device.
+     *
+     * @param name The display name of the connected device, or {@code null} if
+     *            no device is connected.
+     */
+    private void setNotificationDevice(String name) {
+        if (name != null) {
+            mNotificationBuilder.setContentTitle(name);
+            mNotificationBuilder.setSmallIcon(R.drawable.ic_stat_switcher_connected);
+        } else {
+            mNotificationBuilder.setContentTitle(getString(R.string.no_device));
+            mNotificationBuilder.setSmallIcon(R.drawable.ic_stat_switcher_disconnected);
+        }
+        if (mBatchResult != null) {
+            mNotificationBuilder.setContentText(mBatchResult);
+        } else {
+            mNotificationBuilder.setContentText(getString(R.string.touch_to_change));
+        }
+    }
+
     private BluetoothDevice getConnectedDevice() {
-        final List<BluetoothDevice> devices = mAudioProxy
-                .getDevicesMatchingConnectionStates(STATES_CONNECTED);
+        final List<BluetoothDevice> devices = getDevicesMatchingConnectionStatesInternal(
+                STATES_CONNECTED);
 
-        if ((devices == null) || devices.isEmpty()) {
+        if (devices.isEmpty()) {
             // No audio devices are connected.
             return null;
         }
@@ -160,66 +544,884 @@ public class BluetoothSwitcherService extends Service {
         return devices.get(0);
     }
 
-    private void loadPreferences() {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    /**
+     * Replaces the contents of the device state cache with the current state
+     * reported by the audio proxy.
+     */
+    private void seedDeviceStates() {
+        clearDeviceStates();
+
+        if (mAudioProxy == null) {
+            return;
+        }
+
+        mSeedCount++;
+        mProxyCallCount++;
+
+        final List<BluetoothDevice> devices = mAudioProxy
+                .getDevicesMatchingConnectionStates(STATES_CONNECTED);
+        if (devices == null) {
+            return;
+        }
+
+        for (BluetoothDevice device : devices) {
+            mProxyCallCount++;
+            setDeviceStateInternal(device, mAudioProxy.getConnectionState(device));
+        }
+    }
+
+    /**
+     * Applies the state transition carried by a connection state broadcast to
+     * the device state cache.
+     *
+     * @param intent The connection state broadcast.
+     */
+    private void onConnectionStateChanged(Intent intent) {
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null) {
+            return;
+        }
+
+        final int state = intent.getIntExtra(BluetoothA2dpCompat.EXTRA_STATE,
+                BluetoothA2dpCompat.STATE_DISCONNECTED);
+        final int previousState = intent.getIntExtra(BluetoothA2dpCompat.EXTRA_PREVIOUS_STATE,
+                BluetoothA2dpCompat.STATE_DISCONNECTED);
+
+        if ((state != BluetoothA2dpCompat.STATE_DISCONNECTED)
+                && (previousState != getConnectionStateInternal(device))) {
+            // We missed a transition, so the cache can't be trusted.
+            seedDeviceStates();
+        }
+
+        final long deviceId = BluetoothDeviceUtils.getDeviceId(device);
+        final long now = SystemClock.elapsedRealtime();
+        setDeviceStateInternal(device, state);
+        traceStateChange(deviceId, state);
+        mHandoverTracker.onConnectionStateChanged(deviceId, state, now);
+        mConnectionStateMachine.onConnectionStateChanged(deviceId, state, now);
+
+        if ((deviceId == mHandoverTargetId) && ((state == BluetoothA2dpCompat.STATE_CONNECTED)
+                || (state == BluetoothA2dpCompat.STATE_PLAYING))) {
+            finishHandover(now);
+        }
+
+        if ((state == BluetoothA2dpCompat.STATE_CONNECTED)
+                && ((previousState == BluetoothA2dpCompat.STATE_CONNECTING)
+                || (previousState == BluetoothA2dpCompat.STATE_DISCONNECTED))) {
+            mSwitchHistory.record(deviceId, SwitchHistory.getHourOfWeek(Calendar.getInstance()),
+                    now);
+            mPreferencesWriter.markDirty(KEY_HISTORY_FILE);
+        } else if (state == BluetoothA2dpCompat.STATE_DISCONNECTED) {
+            if (mSwitchHistory.onDisconnected(deviceId, now)) {
+                mPreferencesWriter.markDirty(KEY_HISTORY_FILE);
+            }
+
+            prediscoverPredictedDevice();
+        }
+    }
+
+    /**
+     * Records that a device is nearby, or may have left, from discovery and
+     * link broadcasts.
+     *
+     * @param intent The discovery or link broadcast.
+     */
+    private void onDevicePresenceChanged(Intent intent) {
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null) {
+            return;
+        }
+
+        final String action = intent.getAction();
+        final long deviceId = BluetoothDeviceUtils.getDeviceId(device);
+        final long now = SystemClock.elapsedRealtime();
+
+        if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+            mHandoverTracker.onDeviceFound(deviceId, now);
+
+            if (mIsPrediscovering && (deviceId == mPrediscoveryId)) {
+                // Stop early to save power; the device is known to be nearby.
+                mPrediscoveryId = 0;
+                mBluetoothAdapter.cancelDiscovery();
+            }
+        } else {
+            mHandoverTracker.onLinkChanged(deviceId,
+                    BluetoothDevice.ACTION_ACL_CONNECTED.equals(action), now);
+        }
+    }
+
+    /**
+     * Forgets the predicted device once discovery stops, so that a later pass
+     * started by someone else isn't canceled when the device turns up.
+     */
+    private void onDiscoveryFinished() {
+        mIsPrediscovering = false;
+        mPrediscoveryId = 0;
+    }
+
+    private void onBondStateChanged(Intent intent) {
+        final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null) {
+            return;
+        }
+
+        final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                BluetoothDevice.BOND_NONE);
+        if (state == BluetoothDevice.BOND_BONDING) {
+            return;
+        }
+
+        mConnectionStateMachine.onBondStateChanged(BluetoothDeviceUtils.getDeviceId(device),
+                (state == BluetoothDevice.BOND_BONDED), SystemClock.elapsedRealtime());
+    }
+
+    private void traceStateChange(long deviceId, int state) {
+        final long now = SystemClock.elapsedRealtime();
+
+        switch (state) {
+            case BluetoothA2dpCompat.STATE_CONNECTING:
+                mSwitchTracer.mark(deviceId, SwitchTracer.PHASE_CONNECTING, now);
+                break;
+            case BluetoothA2dpCompat.STATE_CONNECTED:
+                mSwitchTracer.mark(deviceId, SwitchTracer.PHASE_CONNECTED, now);
+                break;
+            case BluetoothA2dpCompat.STATE_PLAYING:
+                mSwitchTracer.mark(deviceId, SwitchTracer.PHASE_PLAYING, now);
+                break;
+            case BluetoothA2dpCompat.STATE_DISCONNECTED:
+                // A failed attempt that will be retried is still the same switch.
+                if (!mConnectionStateMachine.isConnecting(deviceId)) {
+                    mSwitchTracer.end(deviceId);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Submits a request to connect a device and starts tracing the switch,
+     * unless the device is already connected.
+     *
+     * @param device The device to connect.
+     * @param source The source of the request, e.g.
+     *            {@link SwitchTracer#SOURCE_LIST}.
+     * @return {@code false} if the request failed immediately.
+     */
+    private boolean connectDeviceInternal(BluetoothDevice device, int source) {
+        final long deviceId = BluetoothDeviceUtils.getDeviceId(device);
+        final long now = SystemClock.elapsedRealtime();
+        final int state = getConnectionStateInternal(device);
+        final boolean isConnected = (state == BluetoothA2dpCompat.STATE_CONNECTED)
+                || (state == BluetoothA2dpCompat.STATE_PLAYING);
+
+        if (!isConnected && !mConnectionStateMachine.isConnecting(deviceId)) {
+            mSwitchTracer.begin(deviceId, source, now);
+            beginHandover(deviceId, now);
+        }
+
+        return mConnectionStateMachine.connect(deviceId, now);
+    }
+
+    /**
+     * Starts measuring the audio gap for a switch to a device. If fast
+     * handover is enabled and the device is ready, it will be connected
+     * without first disconnecting the current device, which is dropped once
+     * the new device has connected.
+     *
+     * @param deviceId The device being switched to.
+     * @param now The time of the request.
+     */
+    private void beginHandover(long deviceId, long now) {
+        final int index = findActiveDevice(deviceId);
+        final long sourceId = (index >= 0) ? mRegistry.keyAt(index) : 0;
+        final int sourceState = (index >= 0) ? mRegistry.stateAt(index)
+                : BluetoothA2dpCompat.STATE_DISCONNECTED;
+
+        int mode = HandoverTracker.MODE_NORMAL;
+        mHandoverSourceId = 0;
+        mHandoverTargetId = 0;
+
+        if (mFastHandover && (sourceId != 0)) {
+            final int result = prewarmHandover(deviceId, now);
+            mHandoverTracker.recordPrewarm(result);
+
+            if (result == HandoverTracker.PREWARM_READY) {
+                mode = HandoverTracker.MODE_HANDOVER;
+                mHandoverSourceId = sourceId;
+                mHandoverTargetId = deviceId;
+            }
+        }
+
+        mHandoverTracker.begin(sourceId, sourceState, deviceId, mode, now);
+    }
+
+    /**
+     * Checks whether a device can be connected straight away: the audio proxy
+     * must be available, and the device must be bonded and nearby. Starts
+     * connecting the audio proxy if it isn't available.
+     *
+     * @param deviceId The device being switched to.
+     * @param now The current time.
+     * @return The result, e.g. {@link HandoverTracker#PREWARM_READY}.
+     */
+    private int prewarmHandover(long deviceId, long now) {
+        if (mAudioProxy == null) {
+            connectAudioProxy();
+            return HandoverTracker.PREWARM_NO_PROXY;
+        }
+
+        if (getRemoteDevice(deviceId).getBondState() != BluetoothDevice.BOND_BONDED) {
+            return HandoverTracker.PREWARM_NOT_BONDED;
+        }
+
+        if (!mHandoverTracker.isPresent(deviceId, now)) {
+            // Without a recent sighting, keep the current device until the
+            // platform drops it.
+            return HandoverTracker.PREWARM_NOT_PRESENT;
+        }
+
+        return HandoverTracker.PREWARM_READY;
+    }
+
+    /**
+     * Disconnects the device being switched from once the new device has
+     * connected, if the platform didn't already.
+     */
+    private void finishHandover(long now) {
+        final long sourceId = mHandoverSourceId;
+        mHandoverSourceId = 0;
+        mHandoverTargetId = 0;
+
+        final int state = mRegistry.getState(sourceId);
+        if ((state == BluetoothA2dpCompat.STATE_CONNECTED)
+                || (state == BluetoothA2dpCompat.STATE_PLAYING)) {
+            mConnectionStateMachine.disconnect(sourceId, now);
+        }
+    }
+
+    /**
+     * Ranks devices by how likely the user is to switch to them next, given
+     * the connected device and the time of the week.
+     *
+     * @return Device IDs, most likely first.
+     */
+    private long[] getPredictedDevicesInternal() {
+        awaitSettings();
+
+        final int index = findActiveDevice(0);
+        final long currentId = (index >= 0) ? mRegistry.keyAt(index) : 0;
+
+        return mSwitchPredictor.rank(mSwitchHistory, currentId,
+                SwitchHistory.getHourOfWeek(Calendar.getInstance()));
+    }
+
+    /**
+     * Runs a discovery pass looking for the device the user is most likely to
+     * switch to next, so that it counts as present for a fast handover and
+     * the controller has a fresh page scan mode and clock offset for it. Only
+     * runs with fast handover enabled, at most once per
+     * {@link #PREDISCOVERY_INTERVAL}, and only while no device is active and
+     * no switch is in progress, since discovery disrupts audio streaming and
+     * slows down paging.
+     */
+    private void prediscoverPredictedDevice() {
+        if (!mFastHandover || !mHasSettings || (mBluetoothAdapter == null)
+                || !mBluetoothAdapter.isEnabled() || mBluetoothAdapter.isDiscovering()
+                || (findActiveDevice(0) >= 0)) {
+            return;
+        }
+
+        // The old device's disconnect can arrive before the new device
+        // reports that it's connecting.
+        if ((mHandoverTargetId != 0) || mConnectionStateMachine.hasPendingConnect()) {
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        if ((mLastPrediscoveryTime >= 0)
+                && ((now - mLastPrediscoveryTime) < PREDISCOVERY_INTERVAL)) {
+            return;
+        }
+
+        final long[] predictedIds = getPredictedDevicesInternal();
+        if ((predictedIds.length == 0) || mHandoverTracker.isPresent(predictedIds[0], now)) {
+            return;
+        }
+
+        if (mBluetoothAdapter.startDiscovery()) {
+            mIsPrediscovering = true;
+            mPrediscoveryId = predictedIds[0];
+            mLastPrediscoveryTime = now;
+            mPrediscoveryCount++;
+        }
+    }
+
+    /**
+     * @param exceptId The device to skip.
+     * @return The registry index of a device that is connected or connecting,
+     *         or -1 if there isn't one.
+     */
+    private int findActiveDevice(long exceptId) {
+        for (int i = 0; i < mRegistry.size(); i++) {
+            if (mRegistry.keyAt(i) == exceptId) {
+                continue;
+            }
+
+            final int state = mRegistry.stateAt(i);
+            for (int match : STATES_ACTIVE) {
+                if (state == match) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean disconnectDeviceInternal(BluetoothDevice device) {
+        return mConnectionStateMachine.disconnect(BluetoothDeviceUtils.getDeviceId(device),
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Disconnects every device that is connected or connecting, optionally
+     * sparing one device.
+     *
+     * @param except The device to leave connected, or {@code null}.
+     * @return The batch ID passed to listeners with the result.
+     */
+    private int disconnectAllInternal(BluetoothDevice except) {
+        final long exceptId = (except != null) ? BluetoothDeviceUtils.getDeviceId(except) : 0;
+
+        int count = 0;
+        final long[] deviceIds = new long[mRegistry.size()];
+        for (int i = 0; i < mRegistry.size(); i++) {
+            final long deviceId = mRegistry.keyAt(i);
+            final int state = mRegistry.stateAt(i);
+            for (int match : STATES_ACTIVE) {
+                if ((state == match) && (deviceId != exceptId)) {
+                    deviceIds[count++] = deviceId;
+                    break;
+                }
+            }
+        }
+
+        final long[] targets = new long[count];
+        System.arraycopy(deviceIds, 0, targets, 0, count);
+
+        return mConnectionStateMachine.disconnectAll(targets, SystemClock.elapsedRealtime());
+    }
+
+    private void cancelConnectionRequestInternal(BluetoothDevice device) {
+        mConnectionStateMachine.cancel(BluetoothDeviceUtils.getDeviceId(device),
+                SystemClock.elapsedRealtime());
+    }
+
+    private int getConnectionRequestStateInternal(BluetoothDevice device) {
+        return mConnectionStateMachine.getState(BluetoothDeviceUtils.getDeviceId(device));
+    }
+
+    private BluetoothDevice getRemoteDevice(long deviceId) {
+        return mBluetoothAdapter.getRemoteDevice(BluetoothDeviceUtils.getAddress(deviceId));
+    }
+
+    private void setDeviceStateInternal(BluetoothDevice device, int state) {
+        final long deviceId = BluetoothDeviceUtils.getDeviceId(device);
+        if (mRegistry.getState(deviceId) == state) {
+            return;
+        }
+
+        // The registry's default state is STATE_DISCONNECTED, so disconnected
+        // devices without settings are dropped automatically.
+        mRegistry.setState(deviceId, state);
+        mBinder.queueChange(DeviceChange.stateChanged(deviceId, state));
+    }
 
-        PreferencesUtils.getSparseArray(prefs, PREF_CUSTOM_NAMES, mCustomDeviceNames);
-        PreferencesUtils.getCollection(prefs, PREF_HIDDEN, mHiddenDevices);
+    /**
+     * Resets the cached connection state of every device to disconnected.
+     */
+    private void clearDeviceStates() {
+        for (int i = 0; i < mRegistry.size(); i++) {
+            if (mRegistry.stateAt(i) != BluetoothA2dpCompat.STATE_DISCONNECTED) {
+                mBinder.queueChange(DeviceChange.stateChanged(mRegistry.keyAt(i),
+                        BluetoothA2dpCompat.STATE_DISCONNECTED));
+            }
+        }
+
+        mRegistry.clearStates();
+    }
 
-        mShowNotification = prefs.getBoolean(PREF_NOTIFY, PREF_NOTIFY_DEFAULT);
+    private int getConnectionStateInternal(BluetoothDevice device) {
+        return mRegistry.getState(BluetoothDeviceUtils.getDeviceId(device));
     }
 
-    private void savePreferences() {
+    private List<BluetoothDevice> getDevicesMatchingConnectionStatesInternal(int[] states) {
+        final List<BluetoothDevice> result = new ArrayList<BluetoothDevice>();
+
+        for (int i = 0; i < mRegistry.size(); i++) {
+            final int state = mRegistry.stateAt(i);
+            for (int match : states) {
+                if (state == match) {
+                    final String address = BluetoothDeviceUtils.getAddress(mRegistry.keyAt(i));
+                    result.add(mBluetoothAdapter.getRemoteDevice(address));
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads settings from disk. Called on the preferences thread.
+     *
+     * @return The loaded settings.
+     */
+    private LoadedSettings loadSettings() {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        final SharedPreferences.Editor editor = prefs.edit();
+        final LoadedSettings settings = new LoadedSettings();
+
+        if (!readRegistryFile(settings.registry)) {
+            settings.needsMigration = migrateRegistryPreferences(prefs, settings.registry);
+        }
+
+        readHistoryFile(settings.history);
 
-        PreferencesUtils.putSparseArray(editor, PREF_CUSTOM_NAMES, mCustomDeviceNames);
-        PreferencesUtils.putCollection(editor, PREF_HIDDEN, mHiddenDevices);
+        PreferencesUtils.getSparseArray(prefs, PREF_CUSTOM_NAMES, settings.legacyDeviceNames);
+        PreferencesUtils.getCollection(prefs, PREF_HIDDEN, settings.legacyHiddenDevices);
 
-        editor.putBoolean(PREF_NOTIFY, mShowNotification);
-        editor.commit();
+        settings.showNotification = prefs.getBoolean(PREF_NOTIFY, PREF_NOTIFY_DEFAULT);
+        settings.fastHandover = prefs.getBoolean(PREF_FAST_HANDOVER, PREF_FAST_HANDOVER_DEFAULT);
+        settings.loadedTime = SystemClock.elapsedRealtime();
 
-        // Ensure data is backed up.
-        BackupManager.dataChanged(getPackageName());
+        return settings;
     }
 
-    private void setNameForDeviceInternal(int deviceId, String name) {
-        mCustomDeviceNames.put(deviceId, name);
+    /**
+     * Waits for settings to finish loading, then adopts them. Returns
+     * immediately once settings have been adopted.
+     */
+    private void awaitSettings() {
+        if (mHasSettings) {
+            return;
+        }
 
-        savePreferences();
+        try {
+            if (!mSettingsLatch.await(SETTINGS_LOAD_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for settings to load");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        adoptSettings();
     }
 
-    private String getDeviceNameInternal(BluetoothDevice device) {
-        final int deviceId = BluetoothDeviceUtils.getDeviceId(device);
-        return mCustomDeviceNames.get(deviceId, device.getName());
+    /**
+     * Merges settings loaded on the background thread into the service's
+     * state. Connection states seeded in the meantime are kept, as are
+     * settings changed by callers that timed out waiting.
+     */
+    private void adoptSettings() {
+        final LoadedSettings settings = mLoadedSettings;
+        if (mHasSettings || (settings == null)) {
+            return;
+        }
+
+        mHasSettings = true;
+        mLoadedSettings = null;
+
+        final DeviceRegistry registry = settings.registry;
+        for (int i = 0; i < registry.size(); i++) {
+            final long deviceId = registry.keyAt(i);
+            if (mRegistry.getName(deviceId) == null) {
+                mRegistry.setName(deviceId, registry.nameAt(i));
+            }
+
+            if (registry.isHiddenAt(i)) {
+                mRegistry.setHidden(deviceId, true);
+            }
+        }
+
+        for (int i = 0; i < settings.legacyDeviceNames.size(); i++) {
+            mLegacyDeviceNames.put(settings.legacyDeviceNames.keyAt(i),
+                    settings.legacyDeviceNames.valueAt(i));
+        }
+
+        mLegacyHiddenDevices.addAll(settings.legacyHiddenDevices);
+
+        if (!mHasNotifyOverride) {
+            mShowNotification = settings.showNotification;
+        }
+
+        if (!mHasHandoverOverride) {
+            mFastHandover = settings.fastHandover;
+        }
+
+        if (settings.needsMigration || mHasDeferredRegistryWrite) {
+            mHasDeferredRegistryWrite = false;
+            mPreferencesWriter.markDirty(KEY_REGISTRY_FILE);
+        }
+
+        // Switches recorded while settings were loading are the newest.
+        mSwitchHistory.addOlder(settings.history);
+
+        if (mHasDeferredHistoryWrite) {
+            mHasDeferredHistoryWrite = false;
+            mPreferencesWriter.markDirty(KEY_HISTORY_FILE);
+        }
+
+        migrateBondedLegacySettings();
+
+        mStartupTimings.mark(StartupTimings.STAGE_SETTINGS_LOADED, settings.loadedTime);
+        markStartupStage(StartupTimings.STAGE_SETTINGS_ADOPTED);
+
+        if (mIsDestroying) {
+            // Only the deferred writes matter now.
+            return;
+        }
+
+        mNotificationScheduler.runNow();
+        mBinder.fireStateChange();
     }
 
-    private void setDeviceVisibilityInternal(int deviceId, boolean isVisible) {
-        if (isVisible) {
-            mHiddenDevices.remove(deviceId);
-        } else {
-            mHiddenDevices.add(deviceId);
+    /**
+     * Reads custom names and visibility from the device registry file.
+     *
+     * @param registry The registry to populate.
+     * @return {@code true} if the file was read, or {@code false} if it is
+     *         missing or corrupt.
+     */
+    private boolean readRegistryFile(DeviceRegistry registry) {
+        try {
+            final FileInputStream in = mRegistryFile.openRead();
+            try {
+                final byte[] data = DeviceRegistryFile.readFully(in,
+                        (int) mRegistryFile.getBaseFile().length());
+                DeviceRegistryFile.decode(data, registry);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read device registry", e);
+            registry.clear();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the switch history file. A missing or corrupt file leaves the
+     * history empty.
+     *
+     * @param history The history to populate.
+     */
+    private void readHistoryFile(SwitchHistory history) {
+        try {
+            final FileInputStream in = mHistoryFile.openRead();
+            try {
+                history.decode(DeviceRegistryFile.readFully(in,
+                        (int) mHistoryFile.getBaseFile().length()));
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // No switches have been recorded yet.
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read switch history", e);
+            history.clear();
+        }
+    }
+
+    /**
+     * Moves custom names and visibility from the string-encoded preferences
+     * used by older versions into the registry. The preferences are removed
+     * once the registry file has been written.
+     *
+     * @param prefs The preferences to read from.
+     * @param registry The registry to populate.
+     * @return {@code true} if any settings were found.
+     */
+    private boolean migrateRegistryPreferences(SharedPreferences prefs, DeviceRegistry registry) {
+        if (!prefs.contains(PREF_DEVICE_NAMES) && !prefs.contains(PREF_HIDDEN_DEVICES)) {
+            return false;
+        }
+
+        final LongSparseArray<String> deviceNames = new LongSparseArray<String>();
+        final ArrayList<Long> hiddenDevices = new ArrayList<Long>();
+
+        PreferencesUtils.getLongSparseArray(prefs, PREF_DEVICE_NAMES, deviceNames);
+        PreferencesUtils.getLongCollection(prefs, PREF_HIDDEN_DEVICES, hiddenDevices);
+
+        for (int i = 0; i < deviceNames.size(); i++) {
+            registry.setName(deviceNames.keyAt(i), deviceNames.valueAt(i));
+        }
+
+        for (long deviceId : hiddenDevices) {
+            registry.setHidden(deviceId, true);
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the device registry file on the preferences thread. Must be
+     * called on the main thread.
+     */
+    private void writeRegistryFile() {
+        final byte[] data = DeviceRegistryFile.encode(mRegistry);
+
+        mPreferencesWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream out = null;
+                try {
+                    out = mRegistryFile.startWrite();
+                    out.write(data);
+                    mRegistryFile.finishWrite(out);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write device registry", e);
+                    if (out != null) {
+                        mRegistryFile.failWrite(out);
+                    }
+                    return;
+                }
+
+                // The string-encoded settings are no longer needed.
+                final SharedPreferences prefs = PreferenceManager
+                        .getDefaultSharedPreferences(BluetoothSwitcherService.this);
+                if (prefs.contains(PREF_DEVICE_NAMES) || prefs.contains(PREF_HIDDEN_DEVICES)) {
+                    prefs.edit().remove(PREF_DEVICE_NAMES).remove(PREF_HIDDEN_DEVICES).commit();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the switch history file on the preferences thread. Must be
+     * called on the main thread.
+     */
+    private void writeHistoryFile() {
+        final byte[] data = mSwitchHistory.encode();
+
+        mPreferencesWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream out = null;
+                try {
+                    out = mHistoryFile.startWrite();
+                    out.write(data);
+                    mHistoryFile.finishWrite(out);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write switch history", e);
+                    if (out != null) {
+                        mHistoryFile.failWrite(out);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the preferences for the specified keys.
+     *
+     * @param editor The editor to write to.
+     * @param keys The preference keys that changed.
+     */
+    private void writePreferences(SharedPreferences.Editor editor, Set<String> keys) {
+        if (keys.contains(KEY_REGISTRY_FILE)) {
+            if (mHasSettings) {
+                writeRegistryFile();
+            } else {
+                // Writing now would drop settings that haven't loaded yet.
+                mHasDeferredRegistryWrite = true;
+            }
+        }
+
+        if (keys.contains(KEY_HISTORY_FILE)) {
+            if (mHasSettings) {
+                writeHistoryFile();
+            } else {
+                // Writing now would drop history that hasn't loaded yet.
+                mHasDeferredHistoryWrite = true;
+            }
+        }
+
+        // Keep legacy settings until every device has been migrated.
+        if (keys.contains(PREF_CUSTOM_NAMES)) {
+            if (mLegacyDeviceNames.size() > 0) {
+                PreferencesUtils.putSparseArray(editor, PREF_CUSTOM_NAMES, mLegacyDeviceNames);
+            } else {
+                editor.remove(PREF_CUSTOM_NAMES);
+            }
+        }
+
+        if (keys.contains(PREF_HIDDEN)) {
+            if (!mLegacyHiddenDevices.isEmpty()) {
+                PreferencesUtils.putCollection(editor, PREF_HIDDEN, mLegacyHiddenDevices);
+            } else {
+                editor.remove(PREF_HIDDEN);
+            }
+        }
+
+        if (keys.contains(PREF_NOTIFY)) {
+            editor.putBoolean(PREF_NOTIFY, mShowNotification);
+        }
+
+        if (keys.contains(PREF_FAST_HANDOVER)) {
+            editor.putBoolean(PREF_FAST_HANDOVER, mFastHandover);
+        }
+    }
+
+    /**
+     * Moves any settings stored under the legacy 32-bit ID for a device to its
+     * 64-bit ID.
+     *
+     * @param deviceId The 64-bit device ID.
+     */
+    private void migrateLegacySettings(long deviceId) {
+        final int legacyDeviceId = BluetoothDeviceUtils.getLegacyDeviceId(deviceId);
+
+        final int index = mLegacyDeviceNames.indexOfKey(legacyDeviceId);
+        if (index >= 0) {
+            if (mRegistry.getName(deviceId) == null) {
+                mRegistry.setName(deviceId, mLegacyDeviceNames.valueAt(index));
+            }
+
+            mLegacyDeviceNames.removeAt(index);
+            mPreferencesWriter.markDirty(KEY_REGISTRY_FILE);
+            mPreferencesWriter.markDirty(PREF_CUSTOM_NAMES);
+        }
+
+        if (mLegacyHiddenDevices.remove(legacyDeviceId)) {
+            mRegistry.setHidden(deviceId, true);
+            mPreferencesWriter.markDirty(KEY_REGISTRY_FILE);
+            mPreferencesWriter.markDirty(PREF_HIDDEN);
+        }
+    }
+
+    /**
+     * Moves all remaining legacy settings to the registry, so the legacy
+     * preferences can be removed. Entries that don't match a bonded device
+     * belong to devices that have since been unpaired and are dropped. Does
+     * nothing until settings are adopted and the adapter is on, since the
+     * bonded devices aren't known before then.
+     */
+    private void migrateBondedLegacySettings() {
+        if (!mHasSettings || ((mLegacyDeviceNames.size() == 0) && mLegacyHiddenDevices.isEmpty())) {
+            return;
+        }
+
+        if ((mBluetoothAdapter == null) || !mBluetoothAdapter.isEnabled()) {
+            return;
+        }
+
+        final Set<BluetoothDevice> devices = mBluetoothAdapter.getBondedDevices();
+        if (devices == null) {
+            return;
+        }
+
+        for (BluetoothDevice device : devices) {
+            migrateLegacySettings(BluetoothDeviceUtils.getDeviceId(device));
+        }
+
+        if (mLegacyDeviceNames.size() > 0) {
+            Log.i(TAG, "Dropping " + mLegacyDeviceNames.size()
+                    + " legacy names for unpaired devices");
+            mLegacyDeviceNames.clear();
+            mPreferencesWriter.markDirty(PREF_CUSTOM_NAMES);
+        }
+
+        if (!mLegacyHiddenDevices.isEmpty()) {
+            Log.i(TAG, "Dropping " + mLegacyHiddenDevices.size()
+                    + " legacy hidden flags for unpaired devices");
+            mLegacyHiddenDevices.clear();
+            mPreferencesWriter.markDirty(PREF_HIDDEN);
         }
+    }
+
+    private void setNameForDeviceInternal(long deviceId, String name) {
+        awaitSettings();
+        migrateLegacySettings(deviceId);
+        mRegistry.setName(deviceId, name);
+        mPreferencesWriter.markDirty(KEY_REGISTRY_FILE);
 
-        savePreferences();
+        mBinder.queueChange(DeviceChange.renamed(deviceId, name));
+    }
+
+    private String getDeviceNameInternal(BluetoothDevice device) {
+        awaitSettings();
+
+        final long deviceId = BluetoothDeviceUtils.getDeviceId(device);
+        migrateLegacySettings(deviceId);
+
+        final String name = mRegistry.getName(deviceId);
+        if (name != null) {
+            return name;
+        }
+
+        return device.getName();
+    }
+
+    private void setDeviceVisibilityInternal(long deviceId, boolean isVisible) {
+        awaitSettings();
+        migrateLegacySettings(deviceId);
+
+        mRegistry.setHidden(deviceId, !isVisible);
+        mPreferencesWriter.markDirty(KEY_REGISTRY_FILE);
+
+        mBinder.queueChange(DeviceChange.visibilityChanged(deviceId, isVisible));
     }
 
     private boolean isDeviceVisibleInternal(BluetoothDevice device) {
-        final int deviceId = BluetoothDeviceUtils.getDeviceId(device);
-        return !mHiddenDevices.contains(deviceId);
+        awaitSettings();
+
+        final long deviceId = BluetoothDeviceUtils.getDeviceId(device);
+        migrateLegacySettings(deviceId);
+
+        return !mRegistry.isHidden(deviceId);
     }
 
     private void setShowNotificationInternal(boolean showNotification) {
+        awaitSettings();
+
         mShowNotification = showNotification;
+        mHasNotifyOverride = !mHasSettings;
+        mPreferencesWriter.markDirty(PREF_NOTIFY);
 
-        savePreferences();
-        updateNotification();
+        mNotificationScheduler.runNow();
     }
 
     private boolean getShowNotificationInternal() {
+        awaitSettings();
+
         return mShowNotification;
     }
 
+    private void setFastHandoverInternal(boolean fastHandover) {
+        awaitSettings();
+
+        mFastHandover = fastHandover;
+        mHasHandoverOverride = !mHasSettings;
+        mPreferencesWriter.markDirty(PREF_FAST_HANDOVER);
+    }
+
+    private HandoverTracker getHandoverTrackerInternal() {
+        return mHandoverTracker;
+    }
+
+    private StartupTimings getStartupTimingsInternal() {
+        return mStartupTimings;
+    }
+
+    private SwitchTracer getSwitchTracerInternal() {
+        return mSwitchTracer;
+    }
+
     private BluetoothA2dpCompat getAudioProxyInternal() {
         return mAudioProxy;
     }
@@ -229,14 +1431,88 @@ public class BluetoothSwitcherService extends Service {
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
 
+            mBroadcastCount++;
+
             if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                        BluetoothAdapter.ERROR);
+                if (state == BluetoothAdapter.STATE_ON) {
+                    seedDeviceStates();
+                } else {
+                    // Nothing can be connected while the adapter is off.
+                    clearDeviceStates();
+                }
+
+                if ((state == BluetoothAdapter.STATE_ON) || (state == BluetoothAdapter.STATE_OFF)) {
+                    mConnectionStateMachine.onAdapterStateChanged(
+                            (state == BluetoothAdapter.STATE_ON), SystemClock.elapsedRealtime());
+                }
+
+                if (state == BluetoothAdapter.STATE_ON) {
+                    migrateBondedLegacySettings();
+                    prediscoverPredictedDevice();
+                } else {
+                    // Discovery can't outlive the adapter.
+                    onDiscoveryFinished();
+                }
+
                 connectAudioProxy();
+            } else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+                onBondStateChanged(intent);
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                onDiscoveryFinished();
+            } else if (BluetoothDevice.ACTION_FOUND.equals(action)
+                    || BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)
+                    || BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
+                onDevicePresenceChanged(intent);
+            } else if (BluetoothA2dpCompat.ACTION_CONNECTION_STATE_CHANGED.equals(action)) {
+                onConnectionStateChanged(intent);
+            }
+
+            mNotificationScheduler.schedule();
+        }
+    };
+
+    private final PreferencesWriter.Source mPreferencesSource = new PreferencesWriter.Source() {
+        @Override
+        public void writePreferences(SharedPreferences.Editor editor, Set<String> keys) {
+            BluetoothSwitcherService.this.writePreferences(editor, keys);
+        }
+
+        @Override
+        public void onPreferencesWritten(Set<String> keys) {
+            // The switch history isn't backed up, so it alone doesn't count.
+            if ((keys.size() > 1) || !keys.contains(KEY_HISTORY_FILE)) {
+                // Ensure data is backed up.
+                BackupManager.dataChanged(getPackageName());
             }
+        }
+    };
 
-            updateNotification();
+    private final Runnable mLoadSettingsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mLoadedSettings = loadSettings();
+            mSettingsLatch.countDown();
+            mHandler.post(mAdoptSettingsRunnable);
         }
     };
 
+    private final Runnable mAdoptSettingsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            adoptSettings();
+        }
+    };
+
+    private final RefreshScheduler mNotificationScheduler = new RefreshScheduler(mHandler,
+            new Runnable() {
+                @Override
+                public void run() {
+                    updateNotification();
+                }
+            }, NOTIFICATION_REFRESH_WINDOW, NOTIFICATION_REFRESH_MAX_LATENCY);
+
     private final BluetoothA2dpCompatCallback mAudioProxyCallback = new BluetoothA2dpCompatCallback() {
         @Override
         public void onProxyDisconnected() {
@@ -247,20 +1523,163 @@ public class BluetoothSwitcherService extends Service {
         public void onProxyConnected(BluetoothA2dpCompat proxy) {
             mAudioProxy = proxy;
             mIsConnectingToProxy = false;
+            markStartupStage(StartupTimings.STAGE_PROXY_CONNECTED);
+
+            seedDeviceStates();
+
+            // Requests that failed for lack of a proxy can go ahead now.
+            mConnectionStateMachine.retryNow(SystemClock.elapsedRealtime());
 
             // We may now obtain streaming information.
-            updateNotification();
+            mNotificationScheduler.runNow();
 
             mBinder.fireAudioProxyAvailable();
         }
     };
 
+    private final ConnectionStateMachine.Backend mConnectionBackend =
+            new ConnectionStateMachine.Backend() {
+                @Override
+                public boolean isAdapterEnabled() {
+                    return (mBluetoothAdapter != null) && mBluetoothAdapter.isEnabled();
+                }
+
+                @Override
+                public boolean enableAdapter() {
+                    return (mBluetoothAdapter != null) && mBluetoothAdapter.enable();
+                }
+
+                @Override
+                public boolean isBonded(long deviceId) {
+                    return (getRemoteDevice(deviceId).getBondState()
+                            == BluetoothDevice.BOND_BONDED);
+                }
+
+                @Override
+                public boolean createBond(long deviceId) {
+                    return BluetoothDeviceCompatUtils.createBond(getRemoteDevice(deviceId));
+                }
+
+                @Override
+                public int getConnectionState(long deviceId) {
+                    return mRegistry.getState(deviceId);
+                }
+
+                @Override
+                public boolean connect(long deviceId) {
+                    if (mAudioProxy == null) {
+                        return false;
+                    }
+
+                    mProxyCallCount++;
+
+                    // In a fast handover, leave the old device connected
+                    // until the new one is up, where the platform allows.
+                    final BluetoothDevice device = getRemoteDevice(deviceId);
+                    final boolean result = (deviceId == mHandoverTargetId)
+                            ? mAudioProxy.connectKeepingOthers(device)
+                            : mAudioProxy.connect(device);
+                    if (!result) {
+                        return false;
+                    }
+
+                    mSwitchTracer.mark(deviceId, SwitchTracer.PHASE_DISPATCHED,
+                            SystemClock.elapsedRealtime());
+                    return true;
+                }
+
+                @Override
+                public boolean disconnect(long deviceId) {
+                    if (mAudioProxy == null) {
+                        return false;
+                    }
+
+                    mProxyCallCount++;
+
+                    return mAudioProxy.disconnect(getRemoteDevice(deviceId));
+                }
+
+                @Override
+                public void scheduleDeadline(long time) {
+                    mHandler.removeCallbacks(mConnectionDeadlineRunnable);
+
+                    if (time >= 0) {
+                        mHandler.postDelayed(mConnectionDeadlineRunnable,
+                                Math.max(0, time - SystemClock.elapsedRealtime()));
+                    }
+                }
+            };
+
+    private final ConnectionStateMachine.Listener mConnectionListener =
+            new ConnectionStateMachine.Listener() {
+                @Override
+                public void onRequestStateChanged(long deviceId, boolean isConnect, int state,
+                        int reason) {
+                    if ((state == ConnectionStateMachine.STATE_FAILED)
+                            || (reason == ConnectionStateMachine.REASON_CANCELED)) {
+                        mSwitchTracer.end(deviceId);
+
+                        if (deviceId == mHandoverTargetId) {
+                            // Leave the old device alone.
+                            mHandoverSourceId = 0;
+                            mHandoverTargetId = 0;
+                        }
+                    }
+
+                    if (state == ConnectionStateMachine.STATE_FAILED) {
+                        Log.w(TAG, "Request for " + BluetoothDeviceUtils.getAddress(deviceId)
+                                + " failed with reason " + reason);
+                    }
+
+                    mBinder.fireConnectionRequestChanged(deviceId, isConnect, state, reason);
+                }
+
+                @Override
+                public void onBatchFinished(int batchId, int succeeded, int failed, long latency) {
+                    if ((succeeded + failed) > 0) {
+                        mBatchResult = getString(R.string.disconnect_all_result, succeeded,
+                                succeeded + failed, latency);
+                        mHandler.removeCallbacks(mClearBatchResultRunnable);
+                        mHandler.postDelayed(mClearBatchResultRunnable, BATCH_RESULT_TIMEOUT);
+                        mNotificationScheduler.schedule();
+                    }
+
+                    mBinder.fireDisconnectAllFinished(batchId, succeeded, failed, latency);
+                }
+            };
+
+    private final Runnable mClearBatchResultRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mBatchResult = null;
+            mNotificationScheduler.schedule();
+        }
+    };
+
+    private final Runnable mConnectionDeadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mConnectionStateMachine.onDeadline(SystemClock.elapsedRealtime());
+        }
+    };
+
     public static class DeviceManagementBinder extends Binder {
         private final RemoteCallbackList<DeviceDataCallback> mListeners =
                 new RemoteCallbackList<DeviceDataCallback>();
 
+        /** Changes waiting to be sent, at most one per device and type. */
+        private final ArrayList<DeviceChange> mPendingChanges = new ArrayList<DeviceChange>();
+        private final Handler mHandler = new Handler();
+
         private final BluetoothSwitcherService mService;
 
+        /** Sequence number of the last change sent to listeners. */
+        private long mSequence;
+        private boolean mIsDispatchPending;
+
+        private int mBatchCount;
+        private int mReloadCount;
+
         public DeviceManagementBinder(BluetoothSwitcherService service) {
             mService = service;
         }
@@ -269,20 +1688,104 @@ public class BluetoothSwitcherService extends Service {
             return mService.getDeviceNameInternal(device);
         }
 
+        /**
+         * Returns the last known A2DP connection state for a device. Served from
+         * memory, so it does not require a call to the audio service.
+         *
+         * @param device The device to query.
+         * @return The connection state of the device.
+         */
+        public int getConnectionState(BluetoothDevice device) {
+            return mService.getConnectionStateInternal(device);
+        }
+
+        /**
+         * Returns the devices whose last known A2DP connection state matches
+         * any of the given states. Served from memory, so it does not require
+         * a call to the audio service.
+         * <p/>
+         * Devices that are disconnected are not tracked, so passing
+         * {@link BluetoothA2dpCompat#STATE_DISCONNECTED} has no effect.
+         *
+         * @param states Array of connection states.
+         * @return List of matching devices.
+         */
+        public List<BluetoothDevice> getDevicesMatchingConnectionStates(int[] states) {
+            return mService.getDevicesMatchingConnectionStatesInternal(states);
+        }
+
+        /**
+         * Requests that a device be connected, turning on Bluetooth and
+         * bonding first if necessary, and traces how long the switch takes.
+         * Progress is reported through
+         * {@link DeviceDataCallback#onConnectionRequestChanged}.
+         *
+         * @param device The device to connect.
+         * @param source The source of the request, e.g.
+         *            {@link SwitchTracer#SOURCE_LIST}.
+         * @return {@code false} if the request failed immediately.
+         */
+        public boolean connectDevice(BluetoothDevice device, int source) {
+            return mService.connectDeviceInternal(device, source);
+        }
+
+        /**
+         * Requests that a device be disconnected, replacing any other request
+         * for the device.
+         *
+         * @param device The device to disconnect.
+         * @return {@code false} if the request failed immediately.
+         */
+        public boolean disconnectDevice(BluetoothDevice device) {
+            return mService.disconnectDeviceInternal(device);
+        }
+
+        /**
+         * Disconnects every device that is connected or connecting, sending
+         * the disconnect commands together. The aggregated result is reported
+         * through {@link DeviceDataCallback#onDisconnectAllFinished} and
+         * briefly shown in the notification.
+         *
+         * @param except The device to leave connected, or {@code null} to
+         *            disconnect every device.
+         * @return The batch ID passed to listeners with the result.
+         */
+        public int disconnectAll(BluetoothDevice except) {
+            return mService.disconnectAllInternal(except);
+        }
+
+        /**
+         * Cancels the request for a device, abandoning any connection attempt
+         * in progress.
+         *
+         * @param device The device whose request should be canceled.
+         */
+        public void cancelConnectionRequest(BluetoothDevice device) {
+            mService.cancelConnectionRequestInternal(device);
+        }
+
+        /**
+         * @param device The device to query.
+         * @return The state of the request for the device, e.g.
+         *         {@link ConnectionStateMachine#STATE_CONNECTING}.
+         */
+        public int getConnectionRequestState(BluetoothDevice device) {
+            return mService.getConnectionRequestStateInternal(device);
+        }
+
         public void setNameForDevice(BluetoothDevice device, String name) {
             setNameForDevice(BluetoothDeviceUtils.getDeviceId(device), name);
         }
 
-        public void setNameForDevice(int deviceId, String name) {
+        public void setNameForDevice(long deviceId, String name) {
             mService.setNameForDeviceInternal(deviceId, name);
-            fireStateChange();
         }
 
         public boolean isDeviceVisible(BluetoothDevice device) {
             return mService.isDeviceVisibleInternal(device);
         }
 
-        public void setDeviceVisibility(int deviceId, boolean isVisible) {
+        public void setDeviceVisibility(long deviceId, boolean isVisible) {
             mService.setDeviceVisibilityInternal(deviceId, isVisible);
         }
 
@@ -294,6 +1797,17 @@ public class BluetoothSwitcherService extends Service {
             mService.setShowNotificationInternal(showNotification);
         }
 
+        /**
+         * Ranks devices by how likely the user is to switch to them next,
+         * based on the local switching history. The connected device is not
+         * ranked.
+         *
+         * @return Device IDs, most likely first.
+         */
+        public long[] getPredictedDevices() {
+            return mService.getPredictedDevicesInternal();
+        }
+
         private void fireAudioProxyAvailable() {
             final int count = mListeners.beginBroadcast();
 
@@ -308,7 +1822,118 @@ public class BluetoothSwitcherService extends Service {
             mListeners.finishBroadcast();
         }
 
+        private void fireConnectionRequestChanged(long deviceId, boolean isConnect, int state,
+                int reason) {
+            final int count = mListeners.beginBroadcast();
+
+            for (int i = 0; i < count; i++) {
+                try {
+                    mListeners.getBroadcastItem(i).onConnectionRequestChanged(deviceId,
+                            isConnect, state, reason);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            mListeners.finishBroadcast();
+        }
+
+        private void fireDisconnectAllFinished(int batchId, int succeeded, int failed,
+                long latency) {
+            final int count = mListeners.beginBroadcast();
+
+            for (int i = 0; i < count; i++) {
+                try {
+                    mListeners.getBroadcastItem(i).onDisconnectAllFinished(batchId, succeeded,
+                            failed, latency);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            mListeners.finishBroadcast();
+        }
+
+        /**
+         * @return The sequence number of the last change sent to listeners.
+         *         Clients that read device data should record this and expect
+         *         the next batch to start one higher.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Queues a change to be sent to listeners. Changes queued during the
+         * same message loop iteration are sent together, and a change replaces
+         * any pending change of the same type for the same device.
+         *
+         * @param change The change to send.
+         */
+        private void queueChange(DeviceChange change) {
+            for (int i = 0; i < mPendingChanges.size(); i++) {
+                final DeviceChange pending = mPendingChanges.get(i);
+                if ((pending.getDeviceId() == change.getDeviceId())
+                        && (pending.getType() == change.getType())) {
+                    mPendingChanges.remove(i);
+                    break;
+                }
+            }
+
+            mPendingChanges.add(change);
+
+            if (!mIsDispatchPending) {
+                mIsDispatchPending = true;
+                mHandler.post(mDispatchChangesRunnable);
+            }
+        }
+
+        private void dispatchChanges() {
+            mIsDispatchPending = false;
+
+            if (mPendingChanges.isEmpty()) {
+                return;
+            }
+
+            // Sequence numbers are assigned after merging, so a gap always
+            // means that a client missed a batch.
+            final ArrayList<DeviceChange> changes = new ArrayList<DeviceChange>(mPendingChanges);
+            for (DeviceChange change : changes) {
+                change.setSequence(++mSequence);
+            }
+            mPendingChanges.clear();
+            mBatchCount++;
+
+            final int count = mListeners.beginBroadcast();
+
+            for (int i = 0; i < count; i++) {
+                try {
+                    mListeners.getBroadcastItem(i).onDeviceChanges(DeviceChange.VERSION, changes);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            mListeners.finishBroadcast();
+        }
+
+        private final Runnable mDispatchChangesRunnable = new Runnable() {
+            @Override
+            public void run() {
+                dispatchChanges();
+            }
+        };
+
+        /**
+         * Tells listeners to reload all device data. Any pending changes are
+         * sent first.
+         */
         private void fireStateChange() {
+            mHandler.removeCallbacks(mDispatchChangesRunnable);
+            dispatchChanges();
+
+            mReloadCount++;
+
             final int count = mListeners.beginBroadcast();
 
             for (int i = 0; i < count; i++) {
@@ -322,6 +1947,25 @@ public class BluetoothSwitcherService extends Service {
             mListeners.finishBroadcast();
         }
 
+        /**
+         * Writes listener and change delivery counters to the current dump
+         * section. Must be called on the main thread.
+         *
+         * @param dump The formatter to write to.
+         */
+        private void dump(DumpFormatter dump) {
+            // Callbacks are only broadcast on the main thread, so this can't
+            // overlap with another broadcast.
+            final int count = mListeners.beginBroadcast();
+            mListeners.finishBroadcast();
+
+            dump.field("registered", count);
+            dump.field("sequence", mSequence);
+            dump.field("pendingChanges", mPendingChanges.size());
+            dump.field("batches", mBatchCount);
+            dump.field("reloads", mReloadCount);
+        }
+
         public void registerCallback(DeviceDataCallback callback) {
             if (callback == null) {
                 return;
@@ -348,5 +1992,60 @@ public class BluetoothSwitcherService extends Service {
         public BluetoothA2dpCompat getAudioProxy() {
             return mService.getAudioProxyInternal();
         }
+
+        /**
+         * @return The time taken by each stage of service startup.
+         */
+        public StartupTimings getStartupTimings() {
+            return mService.getStartupTimingsInternal();
+        }
+
+        /**
+         * Enables or disables statistics for calls to the audio service. This
+         * applies to every caller in the process, not just the service.
+         *
+         * @param enabled {@code true} to collect statistics.
+         */
+        public void setProxyCallStatsEnabled(boolean enabled) {
+            mService.setProxyCallStatsEnabledInternal(enabled);
+        }
+
+        /**
+         * @return Statistics for calls to the audio service, or {@code null}
+         *         if they are not enabled.
+         */
+        public ProxyCallStats getProxyCallStats() {
+            return mService.getProxyCallStatsInternal();
+        }
+
+        /**
+         * @return The latency histograms for device switches.
+         */
+        public SwitchTracer getSwitchTracer() {
+            return mService.getSwitchTracerInternal();
+        }
+
+        /**
+         * @return The audio gap histograms for device switches, per mode.
+         */
+        public HandoverTracker getHandoverTracker() {
+            return mService.getHandoverTrackerInternal();
+        }
+    }
+
+    /**
+     * Settings read from disk on the preferences thread. Handed to the main
+     * thread through {@link #mLoadedSettings}.
+     */
+    private static class LoadedSettings {
+        final DeviceRegistry registry = new DeviceRegistry();
+        final SparseArray<String> legacyDeviceNames = new SparseArray<String>();
+        final TreeSet<Integer> legacyHiddenDevices = new TreeSet<Integer>();
+        final SwitchHistory history = new SwitchHistory();
+
+        boolean needsMigration;
+        boolean showNotification;
+        boolean fastHandover;
+        long loadedTime;
     }
 }
@@ -0,0 +1,136 @@
+package com.googamaphone.a2dpswitcher;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A single change to a device's settings or connection state, delivered to
+ * {@link DeviceDataCallback#onDeviceChanges} in batches.
+ * <p/>
+ * Every change carries a sequence number that increases by one for each
+ * change the service sends. Clients that see a gap in the sequence have
+ * missed changes and should reload all device data.
+ */
+public class DeviceChange implements Parcelable {
+    /** Version of the change batch format. */
+    public static final int VERSION = 1;
+
+    /** The device's custom name changed. */
+    public static final int TYPE_RENAMED = 1;
+
+    /** The device was hidden or shown. */
+    public static final int TYPE_VISIBILITY_CHANGED = 2;
+
+    /** The device's A2DP connection state changed. */
+    public static final int TYPE_STATE_CHANGED = 3;
+
+    private final int mType;
+    private final long mDeviceId;
+    private final int mValue;
+    private final String mName;
+
+    private long mSequence;
+
+    private DeviceChange(int type, long deviceId, int value, String name) {
+        mType = type;
+        mDeviceId = deviceId;
+        mValue = value;
+        mName = name;
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @param name The new custom name, or {@code null} if it was cleared.
+     * @return A change recording that a device was renamed.
+     */
+    public static DeviceChange renamed(long deviceId, String name) {
+        return new DeviceChange(TYPE_RENAMED, deviceId, 0, name);
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @param visible Whether the device is now visible.
+     * @return A change recording that a device was hidden or shown.
+     */
+    public static DeviceChange visibilityChanged(long deviceId, boolean visible) {
+        return new DeviceChange(TYPE_VISIBILITY_CHANGED, deviceId, visible ? 1 : 0, null);
+    }
+
+    /**
+     * @param deviceId The device ID.
+     * @param state The new A2DP connection state.
+     * @return A change recording that a device's connection state changed.
+     */
+    public static DeviceChange stateChanged(long deviceId, int state) {
+        return new DeviceChange(TYPE_STATE_CHANGED, deviceId, state, null);
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public long getDeviceId() {
+        return mDeviceId;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * @return The new custom name for {@link #TYPE_RENAMED} changes, or
+     *         {@code null} if it was cleared.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The new visibility for {@link #TYPE_VISIBILITY_CHANGED} changes.
+     */
+    public boolean isVisible() {
+        return (mValue != 0);
+    }
+
+    /**
+     * @return The new connection state for {@link #TYPE_STATE_CHANGED}
+     *         changes.
+     */
+    public int getState() {
+        return mValue;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mType);
+        dest.writeLong(mDeviceId);
+        dest.writeInt(mValue);
+        dest.writeString(mName);
+        dest.writeLong(mSequence);
+    }
+
+    public static final Parcelable.Creator<DeviceChange> CREATOR =
+            new Parcelable.Creator<DeviceChange>() {
+                @Override
+                public DeviceChange createFromParcel(Parcel source) {
+                    final DeviceChange change = new DeviceChange(source.readInt(),
+                            source.readLong(), source.readInt(), source.readString());
+                    change.setSequence(source.readLong());
+                    return change;
+                }
+
+                @Override
+                public DeviceChange[] newArray(int size) {
+                    return new DeviceChange[size];
+                }
+            };
+}
@@ -53,9 +53,9 @@ import android.widget.Toast;
 import java.util.List;
 
 public class MainActivity extends FragmentActivity {
-    public static final String QUERY_NAME = "name";
-    public static final String QUERY_ADDRESS = "address";
-    public static final String QUERY_VERSION = "version";
+    public static final String QUERY_NAME = DeviceUri.QUERY_NAME;
+    public static final String QUERY_ADDRESS = DeviceUri.QUERY_ADDRESS;
+    public static final String QUERY_VERSION = DeviceUri.QUERY_VERSION;
     public static final String ACTION_SWITCH_DEVICE = "com.googamphone.a2dpswitcher.SWITCH_DEVICE";
     public static final String EXTRA_DEVICE_ID = "device_id";
     public static final String URI_AUTHORITY = "connect";
@@ -66,11 +66,6 @@ public class MainActivity extends FragmentActivity {
     /** The version of encoding used for NFC tags. */
     private static final int TAG_VERSION = 1;
 
-    private static final int[] STATES_CONNECTED = new int[] {
-            BluetoothA2dpCompat.STATE_CONNECTED,
-            BluetoothA2dpCompat.STATE_CONNECTING
-    };
-
     private static final String DIALOG_HIDE = "dialog_remove";
     private static final String DIALOG_RENAME = "dialog_rename";
 
@@ -84,6 +79,9 @@ public class MainActivity extends FragmentActivity {
 
     private boolean mHasRegisteredObserver;
 
+    /** Sequence number of the last device change applied to the list. */
+    private long mDeviceChangeSequence;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -183,6 +181,15 @@ public class MainActivity extends FragmentActivity {
 
             return super.getDeviceName(device);
         }
+
+        @Override
+        protected int getConnectionState(BluetoothDevice device) {
+            if (mDeviceManagementBinder != null) {
+                return mDeviceManagementBinder.getConnectionState(device);
+            }
+
+            return super.getConnectionState(device);
+        }
     }
 
     @Override
@@ -361,16 +368,11 @@ public class MainActivity extends FragmentActivity {
     }
 
     private boolean disconnectAllDevices() {
-        final BluetoothA2dpCompat audioProxy = mAudioProxy;
-        if (audioProxy == null) {
+        if (mAudioProxy == null) {
             return false;
         }
 
-        final List<BluetoothDevice> connectedDevices = audioProxy
-                .getDevicesMatchingConnectionStates(STATES_CONNECTED);
-        for (BluetoothDevice connectedDevice : connectedDevices) {
-            audioProxy.disconnect(connectedDevice);
-        }
+        mDeviceManagementBinder.disconnectAll(null);
 
         return true;
     }
@@ -393,7 +395,7 @@ public class MainActivity extends FragmentActivity {
 
     private boolean onContextItemSelectedForDevice(MenuItem item, BluetoothDevice device) {
         final String deviceName = mDeviceManagementBinder.getDeviceName(device);
-        final int deviceId = BluetoothDeviceUtils.getDeviceId(device);
+        final long deviceId = BluetoothDeviceUtils.getDeviceId(device);
 
         switch (item.getItemId()) {
             case R.id.hide:
@@ -434,13 +436,12 @@ public class MainActivity extends FragmentActivity {
         startActivity(intent);
     }
 
-    public void setDeviceName(int deviceId, String name) {
+    public void setDeviceName(long deviceId, String name) {
         mDeviceManagementBinder.setNameForDevice(deviceId, name);
     }
 
-    public void setDeviceVisibility(int deviceId, boolean visible) {
+    public void setDeviceVisibility(long deviceId, boolean visible) {
         mDeviceManagementBinder.setDeviceVisibility(deviceId, visible);
-        mDeviceAdapter.reloadDevices();
     }
 
     private void onAudioProxyAvailable() {
@@ -458,19 +459,52 @@ public class MainActivity extends FragmentActivity {
 
     private void toggleDeviceState(View v, BluetoothDevice device) {
         final TextView status = (TextView) v.findViewById(android.R.id.text2);
-        final int state = mAudioProxy.getConnectionState(device);
+        final int state = mDeviceManagementBinder.getConnectionState(device);
 
         if (state == BluetoothA2dpCompat.STATE_DISCONNECTED) {
             status.setText(R.string.state_connecting);
-            mAudioProxy.connect(device);
+            mDeviceManagementBinder.connectDevice(device, SwitchTracer.SOURCE_LIST);
         } else {
             status.setText(R.string.state_disconnecting);
-            mAudioProxy.disconnect(device);
+            mDeviceManagementBinder.disconnectDevice(device);
         }
     }
 
+    private void onConnectionRequestChanged(long deviceId, boolean isConnect, int state,
+            int reason) {
+        if (state != ConnectionStateMachine.STATE_FAILED) {
+            return;
+        }
+
+        final int messageId;
+        if (!isConnect) {
+            messageId = R.string.failure_disconnect_device;
+        } else if ((reason == ConnectionStateMachine.REASON_ENABLE_FAILED)
+                || (reason == ConnectionStateMachine.REASON_ADAPTER_OFF)) {
+            messageId = R.string.failure_enable_bluetooth;
+        } else if (reason == ConnectionStateMachine.REASON_BOND_FAILED) {
+            messageId = R.string.failure_bond_device;
+        } else {
+            messageId = R.string.failure_connect_device;
+        }
+
+        Toast.makeText(this, messageId, Toast.LENGTH_SHORT).show();
+    }
+
+    private void onDisconnectAllFinished(int succeeded, int failed, long latency) {
+        if ((succeeded + failed) == 0) {
+            return;
+        }
+
+        final String result = getString(R.string.disconnect_all_result, succeeded,
+                succeeded + failed, latency);
+        Toast.makeText(this, result, Toast.LENGTH_SHORT).show();
+    }
+
     private void onDeviceStateChanged() {
-        mDeviceAdapter.notifyDataSetChanged();
+        mDeviceChangeSequence = mDeviceManagementBinder.getSequence();
+        mDeviceAdapter.setDeviceOrder(mDeviceManagementBinder.getPredictedDevices());
+        mDeviceAdapter.reloadDevices();
 
         final boolean checked = mDeviceManagementBinder.getShowNotification();
         ((CheckBox) findViewById(R.id.show_notification)).setChecked(checked);
@@ -607,16 +641,60 @@ public class MainActivity extends FragmentActivity {
         }
     };
 
+    /**
+     * Applies a batch of device changes, or reloads the list if the batch
+     * can't be applied incrementally.
+     *
+     * @param version The batch format version.
+     * @param changes The changes, in sequence order.
+     */
+    private void onDeviceChanges(int version, List<DeviceChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        if ((version != DeviceChange.VERSION)
+                || (changes.get(0).getSequence() != (mDeviceChangeSequence + 1))) {
+            // We missed some changes, so start over.
+            onDeviceStateChanged();
+            return;
+        }
+
+        for (DeviceChange change : changes) {
+            mDeviceAdapter.applyDeviceChange(change);
+        }
+
+        mDeviceChangeSequence = changes.get(changes.size() - 1).getSequence();
+    }
+
     private final DeviceDataCallback mDeviceDataCallback = new DeviceDataCallback.Stub() {
         @Override
         public void onDeviceDataChanged() throws RemoteException {
             mHandler.onDeviceDataChanged();
         }
 
+        @Override
+        public void onDeviceChanges(int version, List<DeviceChange> changes)
+                throws RemoteException {
+            mHandler.onDeviceChanges(version, changes);
+        }
+
         @Override
         public void onAudioProxyAvailable() throws RemoteException {
             mHandler.onAudioProxyAvailable();
         }
+
+        @Override
+        public void onConnectionRequestChanged(long deviceId, boolean isConnect, int state,
+                int reason) throws RemoteException {
+            mHandler.onConnectionRequestChanged(deviceId, isConnect, state, reason);
+        }
+
+        @Override
+        public void onDisconnectAllFinished(int batchId, int succeeded, int failed,
+                long latency) throws RemoteException {
+            mHandler.onDisconnectAllFinished(succeeded, failed, latency);
+        }
     };
 
     private static class MainActivityHandler extends WeakReferenceHandler<MainActivity> {
@@ -624,6 +702,14 @@ public class MainActivity extends FragmentActivity {
 
         private static final int PROXY_AVAILABLE = 2;
 
+        private static final int DEVICE_CHANGES = 3;
+
+        private static final int CONNECT_REQUEST_CHANGED = 4;
+
+        private static final int DISCONNECT_ALL_FINISHED = 5;
+
+        private static final int DISCONNECT_REQUEST_CHANGED = 6;
+
         public MainActivityHandler(MainActivity parent) {
             super(parent);
         }
@@ -637,6 +723,20 @@ public class MainActivity extends FragmentActivity {
                 case PROXY_AVAILABLE:
                     parent.onAudioProxyAvailable();
                     break;
+                case DEVICE_CHANGES:
+                    @SuppressWarnings("unchecked")
+                    final List<DeviceChange> changes = (List<DeviceChange>) msg.obj;
+                    parent.onDeviceChanges(msg.arg1, changes);
+                    break;
+                case CONNECT_REQUEST_CHANGED:
+                    parent.onConnectionRequestChanged((Long) msg.obj, true, msg.arg1, msg.arg2);
+                    break;
+                case DISCONNECT_REQUEST_CHANGED:
+                    parent.onConnectionRequestChanged((Long) msg.obj, false, msg.arg1, msg.arg2);
+                    break;
+                case DISCONNECT_ALL_FINISHED:
+                    parent.onDisconnectAllFinished(msg.arg1, msg.arg2, (Long) msg.obj);
+                    break;
             }
         }
 
@@ -647,5 +747,19 @@ public class MainActivity extends FragmentActivity {
         public void onAudioProxyAvailable() {
             sendEmptyMessage(PROXY_AVAILABLE);
         }
+
+        public void onDeviceChanges(int version, List<DeviceChange> changes) {
+            obtainMessage(DEVICE_CHANGES, version, 0, changes).sendToTarget();
+        }
+
+        public void onConnectionRequestChanged(long deviceId, boolean isConnect, int state,
+                int reason) {
+            final int what = isConnect ? CONNECT_REQUEST_CHANGED : DISCONNECT_REQUEST_CHANGED;
+            obtainMessage(what, state, reason, deviceId).sendToTarget();
+        }
+
+        public void onDisconnectAllFinished(int succeeded, int failed, long latency) {
+            obtainMessage(DISCONNECT_ALL_FINISHED, succeeded, failed, latency).sendToTarget();
+        }
     }
 }
@@ -0,0 +1,131 @@
+package com.googamaphone.a2dpswitcher;
+
+import com.googamaphone.compat.BluetoothA2dpCompat;
+import com.googamaphone.utils.DumpFormatter;
+import com.googamaphone.utils.LatencyHistogram;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts and times calls to the audio service, per method and per caller.
+ * <p/>
+ * Install with {@link BluetoothA2dpCompat#setCallObserver}. Finding the
+ * caller walks the stack on every call, so this is only meant to be enabled
+ * while diagnosing a problem.
+ * <p/>
+ * A method that is called many times within a single frame, for example once
+ * per row while binding a list, is flagged as a hot loop.
+ */
+public class ProxyCallStats implements BluetoothA2dpCompat.CallObserver {
+    private static final String TAG = ProxyCallStats.class.getSimpleName();
+
+    /** Length of a frame in nanoseconds. */
+    private static final long FRAME_NANOS = 16666667;
+
+    /** Number of calls to one method within a frame that counts as a hot loop. */
+    private static final int HOT_LOOP_CALLS = 8;
+
+    private final HashMap<String, MethodStats> mMethods = new HashMap<String, MethodStats>();
+
+    /** Number of calls for each "method <- caller" pair. */
+    private final HashMap<String, Integer> mCallers = new HashMap<String, Integer>();
+
+    @Override
+    public synchronized void onCall(String method, long durationNanos) {
+        final long now = System.nanoTime();
+        final String caller = findCaller();
+
+        MethodStats stats = mMethods.get(method);
+        if (stats == null) {
+            stats = new MethodStats();
+            mMethods.put(method, stats);
+        }
+
+        stats.count++;
+        stats.durations.record(durationNanos / 1000);
+
+        if ((now - stats.frameStart) > FRAME_NANOS) {
+            stats.frameStart = now;
+            stats.frameCalls = 0;
+        }
+
+        // Only flag each frame once, when it crosses the threshold.
+        if (++stats.frameCalls == HOT_LOOP_CALLS) {
+            stats.hotLoops++;
+            stats.lastHotCaller = caller;
+            Log.w(TAG, "Hot loop: " + method + " called " + HOT_LOOP_CALLS
+                    + " times in one frame from " + caller);
+        }
+
+        final String key = method + " <- " + caller;
+        final Integer count = mCallers.get(key);
+        mCallers.put(key, (count != null) ? (count + 1) : 1);
+    }
+
+    public synchronized void clear() {
+        mMethods.clear();
+        mCallers.clear();
+    }
+
+    /**
+     * Writes per-method and per-caller statistics to the current dump
+     * section. Durations are in microseconds.
+     *
+     * @param dump The formatter to write to.
+     */
+    public synchronized void dump(DumpFormatter dump) {
+        for (Map.Entry<String, MethodStats> entry : new TreeMap<String, MethodStats>(mMethods)
+                .entrySet()) {
+            final MethodStats stats = entry.getValue();
+            final String method = entry.getKey();
+
+            dump.field(method + ".calls", stats.count);
+            dump.histogram(method + ".micros", stats.durations);
+            dump.field(method + ".hotLoops", stats.hotLoops);
+
+            if (stats.lastHotCaller != null) {
+                dump.field(method + ".lastHotCaller", stats.lastHotCaller);
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(mCallers)
+                .entrySet()) {
+            dump.field("caller " + entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return The first frame on the stack outside of the compat layer and
+     *         this class, as "Class.method".
+     */
+    private static String findCaller() {
+        final StackTraceElement[] stack = new Throwable().getStackTrace();
+
+        for (StackTraceElement element : stack) {
+            final String className = element.getClassName();
+            if (!className.startsWith("com.googamaphone.compat.")
+                    && !className.equals(ProxyCallStats.class.getName())) {
+                final String simpleName = className.substring(className.lastIndexOf('.') + 1);
+                return simpleName + "." + element.getMethodName();
+            }
+        }
+
+        return "unknown";
+    }
+
+    private static class MethodStats {
+        /** Call durations in microseconds. */
+        final LatencyHistogram durations = new LatencyHistogram();
+
+        int count;
+        int hotLoops;
+        String lastHotCaller;
+
+        long frameStart;
+        int frameCalls;
+    }
+}
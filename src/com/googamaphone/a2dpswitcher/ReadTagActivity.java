@@ -19,11 +19,8 @@ package com.googamaphone.a2dpswitcher;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.drawable.Drawable;
@@ -38,19 +35,18 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.googamaphone.a2dpswitcher.BluetoothSwitcherService.DeviceManagementBinder;
-import com.googamaphone.compat.BluetoothA2dpCompat;
-import com.googamaphone.compat.BluetoothDeviceCompatUtils;
+import com.googamaphone.utils.BluetoothDeviceUtils;
 
-import java.util.Set;
+import java.util.List;
 
 /**
  * Activity used to read NFC tags encoded by this app.
  * <p/>
- * After parsing the tag data, this activity performs several checks and
- * attempts to resolve any issues before connecting to a Bluetooth device.
+ * After parsing the tag data, this activity binds to the A2DP device
+ * management service and asks it to connect the Bluetooth device. The service
+ * resolves any issues along the way and reports its progress.
  * <ol>
  * <li>Is Bluetooth enabled on this device? Turn on Bluetooth.
- * <li>Is the A2DP device management service running? Bind to it.
  * <li>Is this device bonded to the Bluetooth device? Bond to it.
  * <li>Is audio output connected to the Bluetooth device? Connect it.
  * </ol>
@@ -62,21 +58,9 @@ public class ReadTagActivity extends Activity {
     /** Delay in milliseconds before finishing after a failed read. */
     private static final long DELAY_FAILURE = 2000;
 
-    /** Intent filter used to monitor changes in Bluetooth state. */
-    private static final IntentFilter FILTER_STATE_CHANGED = new IntentFilter();
-
-    static {
-        FILTER_STATE_CHANGED.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
-        FILTER_STATE_CHANGED.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-        FILTER_STATE_CHANGED.addAction(BluetoothA2dpCompat.ACTION_CONNECTION_STATE_CHANGED);
-    }
-
     /** The default Bluetooth adapter. */
     private BluetoothAdapter mBluetoothAdapter;
 
-    /** The audio proxy used to connect A2DP streaming. */
-    private BluetoothA2dpCompat mAudioProxy;
-
     /** Connection to the A2DP device management service. */
     // TODO(alanv): This seems like overkill since they're in the same package.
     private DeviceManagementBinder mDeviceManagementBinder;
@@ -90,6 +74,9 @@ public class ReadTagActivity extends Activity {
     /** Whether the service was bound successfully. */
     private boolean mServiceBound;
 
+    /** Whether the connection request has finished. */
+    private boolean mFinished;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -105,10 +92,11 @@ public class ReadTagActivity extends Activity {
         d.setColorFilter(color, Mode.SRC_IN);
 
         setMessage(R.string.progress_reading_tag);
-        registerReceiver(mBroadcastReceiver, FILTER_STATE_CHANGED);
 
-        if (handleIntent()) {
-            resumeConnectingToDevice();
+        if (mBluetoothAdapter == null) {
+            showFailure(R.string.failure_bluetooth);
+        } else if (handleIntent()) {
+            attemptBindService();
         } else {
             showFailure(R.string.failure_read_tag);
         }
@@ -118,8 +106,6 @@ public class ReadTagActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
-        unregisterReceiver(mBroadcastReceiver);
-
         if (mDeviceManagementBinder != null) {
             mDeviceManagementBinder.unregisterCallback(mDeviceDataCallback);
         }
@@ -157,52 +143,16 @@ public class ReadTagActivity extends Activity {
 
     /**
      * Called after connecting to the device management service. Registers a
-     * callback to listen for changes in device data.
+     * callback to listen for request progress, then asks the service to
+     * connect the device.
      *
      * @param binder The binder that was connected.
      */
     private void onDeviceManagerConnected(DeviceManagementBinder binder) {
         mDeviceManagementBinder = binder;
         mDeviceManagementBinder.registerCallback(mDeviceDataCallback);
-    }
-
-    /**
-     * Attempts to connect to the device with the specified address, handling
-     * failure cases where possible.
-     * <p/>
-     * If necessary, this method will attempt to:
-     * <ul>
-     * <li>Prompt the user to enable Bluetooth</li>
-     * <li>Initiate bonding with the requested device</li>
-     * </ul>
-     */
-    private void resumeConnectingToDevice() {
-        // Is the Bluetooth adapter enabled?
-        if (!mBluetoothAdapter.isEnabled()) {
-            attemptEnableBluetooth();
-            return;
-        }
-
-        // Are we bound to the device management service?
-        if (mDeviceManagementBinder == null) {
-            attemptBindService();
-            return;
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mTargetAddress);
-        final Set<BluetoothDevice> bondedDevices = mBluetoothAdapter.getBondedDevices();
-        if (bondedDevices == null) {
-            showFailure(R.string.failure_connect_device);
-            return;
-        }
 
-        // Are we bonded to the Bluetooth device?
-        if (!bondedDevices.contains(device)) {
-            attemptBondDevice(device);
-            return;
-        }
-
-        attemptConnectDevice(device);
+        attemptConnectDevice(mBluetoothAdapter.getRemoteDevice(mTargetAddress));
     }
 
     /**
@@ -210,35 +160,16 @@ public class ReadTagActivity extends Activity {
      */
     private void attemptBindService() {
         final Intent serviceIntent = new Intent(this, BluetoothSwitcherService.class);
-        mServiceBound = bindService(serviceIntent, mServiceConnection, 0);
-    }
-
-    /**
-     * Attempts to enable Bluetooth on this device.
-     */
-    private void attemptEnableBluetooth() {
-        if (mBluetoothAdapter.enable()) {
-            setMessage(R.string.progress_enable_bluetooth);
-        } else {
-            showFailure(R.string.failure_enable_bluetooth);
-        }
-    }
+        mServiceBound = bindService(serviceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
-    /**
-     * Attempts to bond to the specified Bluetooth device.
-     *
-     * @param device The device to bond.
-     */
-    private void attemptBondDevice(BluetoothDevice device) {
-        if (BluetoothDeviceCompatUtils.createBond(device)) {
-            setMessage(R.string.progress_bond_device);
-        } else {
-            showFailure(R.string.failure_bond_device);
+        if (!mServiceBound) {
+            showFailure(R.string.failure_connect_device);
         }
     }
 
     /**
-     * Attempts to connect audio output to the specified Bluetooth device.
+     * Asks the device management service to connect audio output to the
+     * specified Bluetooth device.
      *
      * @param device The device to connect.
      */
@@ -249,31 +180,60 @@ public class ReadTagActivity extends Activity {
             mDeviceManagementBinder.setNameForDevice(device, mTargetName);
         }
 
-        final int state = mAudioProxy.getConnectionState(device);
-        switch (state) {
-            case BluetoothA2dpCompat.STATE_CONNECTED:
-            case BluetoothA2dpCompat.STATE_PLAYING:
-                // The device is already connected.
-                showSuccess();
-                return;
-        }
-
-        // Attempt to connect. If we fail immediately, let the user know.
-        if (mAudioProxy.connect(device)) {
-            setMessage(R.string.progress_connect_device);
-        } else {
-            showFailure(R.string.failure_connect_device);
+        // Further progress is reported through the callback, which also
+        // carries the reason for an immediate failure.
+        if (mDeviceManagementBinder.connectDevice(device, SwitchTracer.SOURCE_NFC)) {
+            onConnectionRequestChanged(BluetoothDeviceUtils.getDeviceId(device), true,
+                    mDeviceManagementBinder.getConnectionRequestState(device),
+                    ConnectionStateMachine.REASON_NONE);
         }
     }
 
     /**
-     * Called after connecting to the audio proxy. Attempts to resume connecting
-     * to the Bluetooth device.
+     * Updates the layout to reflect the state of the connection request.
+     *
+     * @param deviceId The device ID.
+     * @param isConnect {@code true} for a connect request.
+     * @param state The request state, e.g.
+     *            {@link ConnectionStateMachine#STATE_CONNECTING}.
+     * @param reason The reason for a failure, e.g.
+     *            {@link ConnectionStateMachine#REASON_BOND_FAILED}.
      */
-    private void onAudioProxyAvailable() {
-        mAudioProxy = mDeviceManagementBinder.getAudioProxy();
+    private void onConnectionRequestChanged(long deviceId, boolean isConnect, int state,
+            int reason) {
+        if (mFinished || !isConnect
+                || (deviceId != BluetoothDeviceUtils.getDeviceId(mTargetAddress))) {
+            return;
+        }
 
-        resumeConnectingToDevice();
+        switch (state) {
+            case ConnectionStateMachine.STATE_ENABLING_ADAPTER:
+                setMessage(R.string.progress_enable_bluetooth);
+                break;
+            case ConnectionStateMachine.STATE_BONDING:
+                setMessage(R.string.progress_bond_device);
+                break;
+            case ConnectionStateMachine.STATE_CONNECTING:
+                setMessage(R.string.progress_connect_device);
+                break;
+            case ConnectionStateMachine.STATE_CONNECTED:
+                showSuccess();
+                break;
+            case ConnectionStateMachine.STATE_FAILED:
+                switch (reason) {
+                    case ConnectionStateMachine.REASON_ENABLE_FAILED:
+                    case ConnectionStateMachine.REASON_ADAPTER_OFF:
+                        showFailure(R.string.failure_enable_bluetooth);
+                        break;
+                    case ConnectionStateMachine.REASON_BOND_FAILED:
+                        showFailure(R.string.failure_bond_device);
+                        break;
+                    default:
+                        showFailure(R.string.failure_connect_device);
+                        break;
+                }
+                break;
+        }
     }
 
     /**
@@ -290,6 +250,8 @@ public class ReadTagActivity extends Activity {
      * finishes after a delay.
      */
     private void showSuccess() {
+        mFinished = true;
+
         findViewById(R.id.busy).animate().alpha(0);
         findViewById(R.id.success).animate().alpha(1);
 
@@ -304,6 +266,8 @@ public class ReadTagActivity extends Activity {
      * @param resId The message to display.
      */
     private void showFailure(int resId) {
+        mFinished = true;
+
         findViewById(R.id.busy).animate().alpha(0);
         findViewById(R.id.failed).animate().alpha(1);
 
@@ -318,81 +282,39 @@ public class ReadTagActivity extends Activity {
     }
 
     /**
-     * Handles changes in the Bluetooth device connection state.
+     * Handles progress of the connection request.
      */
-    private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
+    private final DeviceDataCallback mDeviceDataCallback = new DeviceDataCallback.Stub() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-
-            if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
-                onAdapterStateChanged(intent);
-            } else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                onDeviceBondStateChanged(intent);
-            } else if (BluetoothA2dpCompat.ACTION_CONNECTION_STATE_CHANGED.equals(action)) {
-                onDeviceConnectionStateChanged(intent);
-            }
-        }
-
-        private void onDeviceConnectionStateChanged(Intent intent) {
-            final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            if (device != null) {
-                final String address = device.getAddress();
-                if (address != null && address.equals(mTargetAddress)) {
-                    final int state = intent.getIntExtra(BluetoothA2dpCompat.EXTRA_STATE,
-                            BluetoothA2dpCompat.STATE_DISCONNECTED);
-                    if (state == BluetoothA2dpCompat.STATE_CONNECTED
-                                || state == BluetoothA2dpCompat.STATE_PLAYING) {
-                        showSuccess();
-                    } else if (state != BluetoothA2dpCompat.STATE_CONNECTING) {
-                        showFailure(R.string.failure_connect_device);
-                    }
-                }
-            }
+        public void onDeviceDataChanged() throws RemoteException {
+            // Do nothing.
         }
 
-        private void onDeviceBondStateChanged(Intent intent) {
-            final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            if (device != null) {
-                final String address = device.getAddress();
-                if (address != null && address.equals(mTargetAddress)) {
-                    final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
-                            BluetoothDevice.BOND_NONE);
-                    if (state == BluetoothDevice.BOND_BONDED) {
-                        resumeConnectingToDevice();
-                    } else {
-                        showFailure(R.string.failure_bond_device);
-                    }
-                }
-            }
+        @Override
+        public void onDeviceChanges(int version, List<DeviceChange> changes)
+                throws RemoteException {
+            // Do nothing.
         }
 
-        private void onAdapterStateChanged(Intent intent) {
-            final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
-                    BluetoothAdapter.ERROR);
-            if (state == BluetoothAdapter.STATE_ON) {
-                resumeConnectingToDevice();
-            } else {
-                showFailure(R.string.failure_enable_bluetooth);
-            }
+        @Override
+        public void onAudioProxyAvailable() throws RemoteException {
+            // Do nothing.
         }
-    };
 
-    /**
-     * Handles changes in the audio proxy connection state.
-     */
-    private final DeviceDataCallback mDeviceDataCallback = new DeviceDataCallback.Stub() {
         @Override
-        public void onDeviceDataChanged() throws RemoteException {
+        public void onDisconnectAllFinished(int batchId, int succeeded, int failed,
+                long latency) throws RemoteException {
             // Do nothing.
         }
 
         @Override
-        public void onAudioProxyAvailable() throws RemoteException {
+        public void onConnectionRequestChanged(final long deviceId, final boolean isConnect,
+                final int state, final int reason) throws RemoteException {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    ReadTagActivity.this.onAudioProxyAvailable();
+                    ReadTagActivity.this.onConnectionRequestChanged(deviceId, isConnect, state,
+                            reason);
                 }
             });
         }
@@ -11,11 +11,11 @@ public class RemoveDialogFragment extends DialogFragment {
     private static final String KEY_ID = "device_id";
     private static final String KEY_NAME = "device_name";
 
-    public static RemoveDialogFragment newInstance(int deviceId, String deviceName) {
+    public static RemoveDialogFragment newInstance(long deviceId, String deviceName) {
         final RemoveDialogFragment renameFragment = new RemoveDialogFragment();
         final Bundle args = new Bundle();
 
-        args.putInt(KEY_ID, deviceId);
+        args.putLong(KEY_ID, deviceId);
         args.putString(KEY_NAME, deviceName);
 
         renameFragment.setArguments(args);
@@ -26,7 +26,7 @@ public class RemoveDialogFragment extends DialogFragment {
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
         final Bundle args = getArguments();
-        final int deviceId = args.getInt(KEY_ID);
+        final long deviceId = args.getLong(KEY_ID);
         final String deviceName = args.getString(KEY_NAME);
 
         final OnClickListener onClickListener = new OnClickListener() {
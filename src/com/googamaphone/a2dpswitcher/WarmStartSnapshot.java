@@ -0,0 +1,80 @@
+package com.googamaphone.a2dpswitcher;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Last known connected device and its display name, persisted so that the
+ * notification can show the right state immediately after a restart.
+ * <p/>
+ * The snapshot is kept in its own small preferences file so that reading it
+ * does not require loading the full device settings.
+ */
+public class WarmStartSnapshot {
+    private static final String PREFS_NAME = "warm_start";
+
+    private static final String PREF_VALID = "valid";
+    private static final String PREF_DEVICE_ID = "deviceId";
+    private static final String PREF_DEVICE_NAME = "deviceName";
+
+    private final SharedPreferences mPrefs;
+
+    private boolean mIsValid;
+    private long mDeviceId;
+    private String mDeviceName;
+
+    public WarmStartSnapshot(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mIsValid = mPrefs.getBoolean(PREF_VALID, false);
+        mDeviceId = mPrefs.getLong(PREF_DEVICE_ID, 0);
+        mDeviceName = mPrefs.getString(PREF_DEVICE_NAME, null);
+    }
+
+    /**
+     * @return {@code true} if a snapshot has been saved.
+     */
+    public boolean isValid() {
+        return mIsValid;
+    }
+
+    /**
+     * @return The ID of the last connected device, or 0 if no device was
+     *         connected.
+     */
+    public long getDeviceId() {
+        return mDeviceId;
+    }
+
+    /**
+     * @return The display name of the last connected device, or {@code null}
+     *         if no device was connected.
+     */
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    /**
+     * Saves the current state. Does nothing if the state has not changed, so
+     * it is cheap to call on every notification update.
+     *
+     * @param deviceId The ID of the connected device, or 0 if none.
+     * @param deviceName The display name of the connected device, or
+     *            {@code null} if none.
+     */
+    public void update(long deviceId, String deviceName) {
+        if (mIsValid && (mDeviceId == deviceId)
+                && ((mDeviceName == null) ? (deviceName == null) : mDeviceName.equals(deviceName))) {
+            return;
+        }
+
+        mIsValid = true;
+        mDeviceId = deviceId;
+        mDeviceName = deviceName;
+
+        mPrefs.edit()
+                .putBoolean(PREF_VALID, true)
+                .putLong(PREF_DEVICE_ID, deviceId)
+                .putString(PREF_DEVICE_NAME, deviceName)
+                .apply();
+    }
+}
@@ -26,6 +26,7 @@ public class BluetoothA2dpCompat {
     static interface BluetoothA2dpVersionImpl {
         public boolean obtain(Context context, BluetoothA2dpStubCallback callback);
         public boolean connect(Object receiver, BluetoothDevice device);
+        public boolean connectKeepingOthers(Object receiver, BluetoothDevice device);
         public boolean disconnect(Object receiver, BluetoothDevice device);
         public List<BluetoothDevice> getDevicesMatchingConnectionStates(Object receiver, int[] states);
         public int getConnectionState(Object receiver, BluetoothDevice device);
@@ -46,6 +47,13 @@ public class BluetoothA2dpCompat {
             return false;
         }
 
+        @Override
+        public boolean connectKeepingOthers(Object receiver, BluetoothDevice device) {
+            // Only implementations that disconnect other devices themselves
+            // need to override this.
+            return connect(receiver, device);
+        }
+
         @Override
         public boolean disconnect(Object receiver, BluetoothDevice device) {
             return false;
@@ -82,6 +90,9 @@ public class BluetoothA2dpCompat {
 
     private static final BluetoothA2dpVersionImpl IMPL;
 
+    /** The platform implementation, possibly wrapped for instrumentation. */
+    private static volatile BluetoothA2dpVersionImpl sActiveImpl;
+
     public static final String ACTION_CONNECTION_STATE_CHANGED;
     public static final String EXTRA_STATE;
     public static final String EXTRA_PREVIOUS_STATE;
@@ -98,14 +109,16 @@ public class BluetoothA2dpCompat {
         ACTION_CONNECTION_STATE_CHANGED = IMPL.getStateChangedAction();
         EXTRA_STATE = IMPL.getExtraState();
         EXTRA_PREVIOUS_STATE = IMPL.getExtraPreviousState();
+
+        sActiveImpl = IMPL;
     }
 
-    public static final int STATE_DISCONNECTED = 0;
-    public static final int STATE_CONNECTING = 1;
-    public static final int STATE_CONNECTED = 2;
-    public static final int STATE_DISCONNECTING = 3;
-    public static final int STATE_PLAYING = 10;
-    public static final int STATE_NOT_PLAYING = 11;
+    public static final int STATE_DISCONNECTED = BluetoothA2dpStates.STATE_DISCONNECTED;
+    public static final int STATE_CONNECTING = BluetoothA2dpStates.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = BluetoothA2dpStates.STATE_CONNECTED;
+    public static final int STATE_DISCONNECTING = BluetoothA2dpStates.STATE_DISCONNECTING;
+    public static final int STATE_PLAYING = BluetoothA2dpStates.STATE_PLAYING;
+    public static final int STATE_NOT_PLAYING = BluetoothA2dpStates.STATE_NOT_PLAYING;
 
     public static boolean obtain(Context context, final BluetoothA2dpCompatCallback callback) {
         if ((context == null) || (callback == null)) {
@@ -127,6 +140,28 @@ public class BluetoothA2dpCompat {
         return IMPL.obtain(context, stubCallback);
     }
 
+    /**
+     * Sets an observer that is told about every call to the audio service and
+     * how long it took. Pass {@code null} to remove instrumentation, which
+     * restores direct calls with no overhead.
+     *
+     * @param observer The observer, or {@code null}.
+     */
+    public static void setCallObserver(CallObserver observer) {
+        if (observer != null) {
+            sActiveImpl = new BluetoothA2dpInstrumentedImpl(IMPL, observer);
+        } else {
+            sActiveImpl = IMPL;
+        }
+    }
+
+    /**
+     * @return {@code true} if a call observer is set.
+     */
+    public static boolean hasCallObserver() {
+        return (sActiveImpl != IMPL);
+    }
+
     private final Object mReceiver;
 
     private BluetoothA2dpCompat(Object receiver) {
@@ -151,7 +186,24 @@ public class BluetoothA2dpCompat {
      * @return false on immediate error, true otherwise
      */
     public boolean connect(BluetoothDevice device) {
-        return IMPL.connect(mReceiver, device);
+        return sActiveImpl.connect(mReceiver, device);
+    }
+
+    /**
+     * Initiate connection to a profile of the remote bluetooth device without
+     * first disconnecting other connected devices. Whether the other devices
+     * stay connected is up to the platform; currently, the system still
+     * supports only 1 connection to the A2DP profile, but it may connect the
+     * new device before disconnecting the old one.
+     * <p>
+     * Requires {@link android.Manifest.permission#BLUETOOTH_ADMIN} permission.
+     *
+     * @param device Remote Bluetooth Device
+     * @return false on immediate error, true otherwise
+     * @see #connect(BluetoothDevice)
+     */
+    public boolean connectKeepingOthers(BluetoothDevice device) {
+        return sActiveImpl.connectKeepingOthers(mReceiver, device);
     }
 
     /**
@@ -177,7 +229,7 @@ public class BluetoothA2dpCompat {
      * @return false on immediate error, true otherwise
      */
     public boolean disconnect(BluetoothDevice device) {
-        return IMPL.disconnect(mReceiver, device);
+        return sActiveImpl.disconnect(mReceiver, device);
     }
 
     /**
@@ -195,7 +247,7 @@ public class BluetoothA2dpCompat {
      * @return List of devices. The list will be empty on error.
      */
     public List<BluetoothDevice> getDevicesMatchingConnectionStates(int[] states) {
-        return IMPL.getDevicesMatchingConnectionStates(mReceiver, states);
+        return sActiveImpl.getDevicesMatchingConnectionStates(mReceiver, states);
     }
 
     /**
@@ -209,7 +261,7 @@ public class BluetoothA2dpCompat {
      *               {@link #STATE_DISCONNECTED}, {@link #STATE_DISCONNECTING}
      */
     public int getConnectionState(BluetoothDevice device) {
-        return IMPL.getConnectionState(mReceiver, device);
+        return sActiveImpl.getConnectionState(mReceiver, device);
     }
 
     public void shutdown() {
@@ -225,4 +277,17 @@ public class BluetoothA2dpCompat {
         public void onProxyConnected(BluetoothA2dpCompat proxy);
         public void onProxyDisconnected();
     }
+
+    /**
+     * Receives a report for every call to the audio service.
+     */
+    public interface CallObserver {
+        /**
+         * Called on the calling thread after each call returns.
+         *
+         * @param method The name of the method, e.g. {@code "connect"}.
+         * @param durationNanos How long the call took, in nanoseconds.
+         */
+        public void onCall(String method, long durationNanos);
+    }
 }
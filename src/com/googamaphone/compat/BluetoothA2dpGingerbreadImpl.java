@@ -14,6 +14,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -38,6 +39,10 @@ class BluetoothA2dpGingerbreadImpl extends BluetoothA2dpStubImpl {
     private static final Method METHOD_getNonDisconnectedSinks = CompatUtils.getMethod(
             CLASS_BluetoothA2dp, "getNonDisconnectedSinks");
 
+    /** Cached results of {@link #doesDeviceSuportA2dp}, keyed by device. */
+    private static final HashMap<BluetoothDevice, Boolean> sSupportsA2dp =
+            new HashMap<BluetoothDevice, Boolean>();
+
     @Override
     public boolean obtain(Context context, final BluetoothA2dpStubCallback callback) {
         new ConnectProxyTask(context) {
@@ -59,16 +64,23 @@ class BluetoothA2dpGingerbreadImpl extends BluetoothA2dpStubImpl {
         final Set<BluetoothDevice> sinks = getNonDisconnectedSinks(receiver);
 
         // To meet the API specification, we need to disconnect all connected A2DP devices.
-        for (BluetoothDevice sink : sinks) {
-            disconnect(receiver, sink);
+        if (sinks != null) {
+            for (BluetoothDevice sink : sinks) {
+                disconnect(receiver, sink);
+            }
         }
 
-        return (Boolean) CompatUtils.invoke(receiver, false, METHOD_connectSink, device);
+        return connectKeepingOthers(receiver, device);
+    }
+
+    @Override
+    public boolean connectKeepingOthers(Object receiver, BluetoothDevice device) {
+        return CompatUtils.invokeBoolean(receiver, false, METHOD_connectSink, device);
     }
 
     @Override
     public boolean disconnect(Object receiver, BluetoothDevice device) {
-        return (Boolean) CompatUtils.invoke(receiver, false, METHOD_disconnectSink, device);
+        return CompatUtils.invokeBoolean(receiver, false, METHOD_disconnectSink, device);
     }
 
     @Override
@@ -85,13 +97,30 @@ class BluetoothA2dpGingerbreadImpl extends BluetoothA2dpStubImpl {
 
         final List<BluetoothDevice> result = new ArrayList<BluetoothDevice>(devices.size());
         final long bitmask = collapseValuesToBitmask(states);
+        final boolean matchNonDisconnected =
+                (bitmask & ~(1 << BluetoothA2dpCompat.STATE_DISCONNECTED)) != 0;
+
+        // Every sink that isn't in this set is disconnected, so we only need
+        // to query the exact state of the (usually one or zero) sinks in it.
+        final Set<BluetoothDevice> sinks = getNonDisconnectedSinks(receiver);
 
         for (BluetoothDevice device : devices) {
             if (!doesDeviceSuportA2dp(device)) {
                 continue;
             }
 
-            final int sinkState = getConnectionState(receiver, device);
+            final int sinkState;
+            if (sinks == null) {
+                // Fall back to querying every device.
+                sinkState = getConnectionState(receiver, device);
+            } else if (!sinks.contains(device)) {
+                sinkState = BluetoothA2dpCompat.STATE_DISCONNECTED;
+            } else if (matchNonDisconnected) {
+                sinkState = getConnectionState(receiver, device);
+            } else {
+                continue;
+            }
+
             if (!checkBitmaskForValue(bitmask, sinkState)) {
                 continue;
             }
@@ -104,7 +133,7 @@ class BluetoothA2dpGingerbreadImpl extends BluetoothA2dpStubImpl {
 
     @Override
     public int getConnectionState(Object receiver, BluetoothDevice device) {
-        return (Integer) CompatUtils.invoke(receiver, BluetoothA2dpCompat.STATE_DISCONNECTED,
+        return CompatUtils.invokeInt(receiver, BluetoothA2dpCompat.STATE_DISCONNECTED,
                 METHOD_getSinkState, device);
     }
 
@@ -130,11 +159,29 @@ class BluetoothA2dpGingerbreadImpl extends BluetoothA2dpStubImpl {
     }
 
     private static boolean doesDeviceSuportA2dp(BluetoothDevice device) {
+        synchronized (sSupportsA2dp) {
+            final Boolean cached = sSupportsA2dp.get(device);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         final BluetoothClass deviceClass = device.getBluetoothClass();
         if (deviceClass == null) {
+            // The class may not be known yet, so don't cache the result.
             return false;
         }
 
+        final boolean supportsA2dp = doesClassSupportA2dp(deviceClass);
+
+        synchronized (sSupportsA2dp) {
+            sSupportsA2dp.put(device, supportsA2dp);
+        }
+
+        return supportsA2dp;
+    }
+
+    private static boolean doesClassSupportA2dp(BluetoothClass deviceClass) {
         if (deviceClass.hasService(BluetoothClass.Service.RENDER)) {
             return true;
         }
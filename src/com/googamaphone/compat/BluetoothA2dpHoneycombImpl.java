@@ -48,12 +48,12 @@ class BluetoothA2dpHoneycombImpl extends BluetoothA2dpStubImpl {
 
     @Override
     public boolean connect(Object receiver, BluetoothDevice device) {
-        return (Boolean) CompatUtils.invoke(receiver, false, METHOD_connect, device);
+        return CompatUtils.invokeBoolean(receiver, false, METHOD_connect, device);
     }
 
     @Override
     public boolean disconnect(Object receiver, BluetoothDevice device) {
-        return (Boolean) CompatUtils.invoke(receiver, false, METHOD_disconnect, device);
+        return CompatUtils.invokeBoolean(receiver, false, METHOD_disconnect, device);
     }
 
     @Override
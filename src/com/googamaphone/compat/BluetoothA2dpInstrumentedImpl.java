@@ -0,0 +1,90 @@
+package com.googamaphone.compat;
+
+import java.util.List;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+
+import com.googamaphone.compat.BluetoothA2dpCompat.BluetoothA2dpStubCallback;
+import com.googamaphone.compat.BluetoothA2dpCompat.BluetoothA2dpVersionImpl;
+import com.googamaphone.compat.BluetoothA2dpCompat.CallObserver;
+
+/**
+ * Wraps another implementation and reports the duration of every call that
+ * reaches the audio service.
+ */
+class BluetoothA2dpInstrumentedImpl implements BluetoothA2dpVersionImpl {
+    private final BluetoothA2dpVersionImpl mImpl;
+    private final CallObserver mObserver;
+
+    BluetoothA2dpInstrumentedImpl(BluetoothA2dpVersionImpl impl, CallObserver observer) {
+        mImpl = impl;
+        mObserver = observer;
+    }
+
+    @Override
+    public boolean obtain(Context context, BluetoothA2dpStubCallback callback) {
+        return mImpl.obtain(context, callback);
+    }
+
+    @Override
+    public boolean connect(Object receiver, BluetoothDevice device) {
+        final long start = System.nanoTime();
+        final boolean result = mImpl.connect(receiver, device);
+        mObserver.onCall("connect", System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public boolean connectKeepingOthers(Object receiver, BluetoothDevice device) {
+        final long start = System.nanoTime();
+        final boolean result = mImpl.connectKeepingOthers(receiver, device);
+        mObserver.onCall("connectKeepingOthers", System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public boolean disconnect(Object receiver, BluetoothDevice device) {
+        final long start = System.nanoTime();
+        final boolean result = mImpl.disconnect(receiver, device);
+        mObserver.onCall("disconnect", System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public List<BluetoothDevice> getDevicesMatchingConnectionStates(Object receiver, int[] states) {
+        final long start = System.nanoTime();
+        final List<BluetoothDevice> result = mImpl.getDevicesMatchingConnectionStates(receiver,
+                states);
+        mObserver.onCall("getDevicesMatchingConnectionStates", System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public int getConnectionState(Object receiver, BluetoothDevice device) {
+        final long start = System.nanoTime();
+        final int result = mImpl.getConnectionState(receiver, device);
+        mObserver.onCall("getConnectionState", System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public void shutdown(Object receiver) {
+        mImpl.shutdown(receiver);
+    }
+
+    @Override
+    public String getStateChangedAction() {
+        return mImpl.getStateChangedAction();
+    }
+
+    @Override
+    public String getExtraState() {
+        return mImpl.getExtraState();
+    }
+
+    @Override
+    public String getExtraPreviousState() {
+        return mImpl.getExtraPreviousState();
+    }
+}
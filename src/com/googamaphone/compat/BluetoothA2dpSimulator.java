@@ -0,0 +1,482 @@
+package com.googamaphone.compat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * In-process simulation of a Bluetooth adapter and the A2DP profile, for
+ * running the switching pipeline headless on a plain JVM.
+ * <p>
+ * Devices are identified by 64-bit device ID instead of
+ * {@code BluetoothDevice}, which can't be constructed off-device. Time is
+ * virtual: operations schedule transitions on an internal clock, and nothing
+ * happens until the clock is advanced with {@link #advanceBy(long)} or
+ * {@link #runUntilIdle()}. Transitions are reported to a {@link Listener} in
+ * the same order as the platform's broadcasts.
+ * </p>
+ * Like the platform, only one sink may be connected at a time; connecting a
+ * sink disconnects any other connected sink first. The simulator is not
+ * thread-safe.
+ */
+public class BluetoothA2dpSimulator {
+    /**
+     * Receives simulated broadcasts.
+     */
+    public interface Listener {
+        public void onAdapterStateChanged(boolean enabled);
+        public void onBondStateChanged(long deviceId, boolean bonded);
+        public void onConnectionStateChanged(long deviceId, int previousState, int state);
+    }
+
+    /**
+     * A simulated sink. Latencies default to the simulator's defaults and may
+     * be overridden per sink.
+     */
+    public static class Sink {
+        private final long mDeviceId;
+        private final String mName;
+
+        private boolean mBonded;
+        private int mState = BluetoothA2dpStates.STATE_DISCONNECTED;
+        private long mConnectLatency;
+        private long mDisconnectLatency;
+        private long mPlayLatency;
+        private boolean mFailsToConnect;
+
+        /** Incremented on every operation to cancel stale transitions. */
+        private int mGeneration;
+
+        private Sink(long deviceId, String name, BluetoothA2dpSimulator simulator) {
+            mDeviceId = deviceId;
+            mName = name;
+            mConnectLatency = simulator.mConnectLatency;
+            mDisconnectLatency = simulator.mDisconnectLatency;
+            mPlayLatency = simulator.mPlayLatency;
+        }
+
+        public long getDeviceId() {
+            return mDeviceId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isBonded() {
+            return mBonded;
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        public Sink setBonded(boolean bonded) {
+            mBonded = bonded;
+            return this;
+        }
+
+        /**
+         * @param latency Time in milliseconds from CONNECTING to CONNECTED.
+         */
+        public Sink setConnectLatency(long latency) {
+            mConnectLatency = latency;
+            return this;
+        }
+
+        /**
+         * @param latency Time in milliseconds from DISCONNECTING to
+         *            DISCONNECTED.
+         */
+        public Sink setDisconnectLatency(long latency) {
+            mDisconnectLatency = latency;
+            return this;
+        }
+
+        /**
+         * @param latency Time in milliseconds from CONNECTED to PLAYING, or -1
+         *            if the sink never reports playing.
+         */
+        public Sink setPlayLatency(long latency) {
+            mPlayLatency = latency;
+            return this;
+        }
+
+        /**
+         * @param fails {@code true} if connection attempts should go from
+         *            CONNECTING back to DISCONNECTED.
+         */
+        public Sink setFailsToConnect(boolean fails) {
+            mFailsToConnect = fails;
+            return this;
+        }
+    }
+
+    private final HashMap<Long, Sink> mSinks = new HashMap<Long, Sink>();
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+
+    private Listener mListener;
+
+    private long mNow;
+    private long mEventCount;
+    private int mCallCount;
+
+    private boolean mEnabled = true;
+    private int mAdapterGeneration;
+
+    private long mConnectLatency = 1000;
+    private long mDisconnectLatency = 200;
+    private long mPlayLatency = 500;
+    private long mBondLatency = 2000;
+    private long mAdapterLatency = 1500;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the default latencies, in milliseconds, for sinks added after this
+     * call and for adapter operations.
+     */
+    public void setDefaultLatencies(long connect, long disconnect, long play, long bond,
+                                    long adapter) {
+        mConnectLatency = connect;
+        mDisconnectLatency = disconnect;
+        mPlayLatency = play;
+        mBondLatency = bond;
+        mAdapterLatency = adapter;
+    }
+
+    /**
+     * Adds a bonded sink.
+     *
+     * @param deviceId The device ID, which must not be 0.
+     * @param name The device name.
+     * @return The sink, for further configuration.
+     */
+    public Sink addSink(long deviceId, String name) {
+        if (deviceId == 0) {
+            throw new IllegalArgumentException("Device ID must not be 0");
+        }
+
+        final Sink sink = new Sink(deviceId, name, this);
+        sink.setBonded(true);
+        mSinks.put(deviceId, sink);
+        return sink;
+    }
+
+    public Sink getSink(long deviceId) {
+        return mSinks.get(deviceId);
+    }
+
+    /**
+     * @return The current virtual time in milliseconds.
+     */
+    public long now() {
+        return mNow;
+    }
+
+    /**
+     * @return The number of profile and adapter calls made, for comparing
+     *         against the platform's IPC cost.
+     */
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * @return The number of transitions delivered to the listener.
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    public boolean isEnabled() {
+        mCallCount++;
+        return mEnabled;
+    }
+
+    /**
+     * Turns the adapter on or off after the adapter latency. Turning it off
+     * disconnects every sink immediately.
+     *
+     * @return {@code false} if the adapter is already in that state.
+     */
+    public boolean setEnabled(final boolean enabled) {
+        mCallCount++;
+
+        if (enabled == mEnabled) {
+            return false;
+        }
+
+        final int generation = ++mAdapterGeneration;
+        schedule(mAdapterLatency, new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mAdapterGeneration) {
+                    return;
+                }
+
+                mEnabled = enabled;
+
+                if (!enabled) {
+                    for (Sink sink : mSinks.values()) {
+                        sink.mGeneration++;
+                        setState(sink, BluetoothA2dpStates.STATE_DISCONNECTED);
+                    }
+                }
+
+                if (mListener != null) {
+                    mListener.onAdapterStateChanged(enabled);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Bonds with a sink after the bond latency.
+     *
+     * @return {@code false} if the adapter is off, or the sink is unknown or
+     *         already bonded.
+     */
+    public boolean createBond(long deviceId) {
+        mCallCount++;
+
+        final Sink sink = mSinks.get(deviceId);
+        if (!mEnabled || (sink == null) || sink.mBonded) {
+            return false;
+        }
+
+        schedule(mBondLatency, new Runnable() {
+            @Override
+            public void run() {
+                sink.mBonded = true;
+
+                if (mListener != null) {
+                    mListener.onBondStateChanged(sink.mDeviceId, true);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * @return The IDs of all bonded sinks.
+     */
+    public List<Long> getBondedDevices() {
+        mCallCount++;
+
+        final ArrayList<Long> result = new ArrayList<Long>();
+        for (Sink sink : mSinks.values()) {
+            if (sink.mBonded) {
+                result.add(sink.mDeviceId);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Starts connecting a sink, disconnecting any other connected sink first.
+     *
+     * @return {@code false} on immediate error, as with the platform.
+     */
+    public boolean connect(long deviceId) {
+        mCallCount++;
+
+        final Sink sink = mSinks.get(deviceId);
+        if (!mEnabled || (sink == null) || !sink.mBonded
+                || (sink.mState != BluetoothA2dpStates.STATE_DISCONNECTED)) {
+            return false;
+        }
+
+        for (Sink other : mSinks.values()) {
+            if ((other != sink) && isActive(other.mState)) {
+                startDisconnect(other);
+            }
+        }
+
+        final int generation = ++sink.mGeneration;
+        setState(sink, BluetoothA2dpStates.STATE_CONNECTING);
+
+        schedule(sink.mConnectLatency, new Runnable() {
+            @Override
+            public void run() {
+                if (generation != sink.mGeneration) {
+                    return;
+                }
+
+                if (sink.mFailsToConnect) {
+                    setState(sink, BluetoothA2dpStates.STATE_DISCONNECTED);
+                    return;
+                }
+
+                setState(sink, BluetoothA2dpStates.STATE_CONNECTED);
+
+                if (sink.mPlayLatency >= 0) {
+                    schedule(sink.mPlayLatency, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == sink.mGeneration) {
+                                setState(sink, BluetoothA2dpStates.STATE_PLAYING);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Starts disconnecting a sink.
+     *
+     * @return {@code false} if the sink is not connected or connecting.
+     */
+    public boolean disconnect(long deviceId) {
+        mCallCount++;
+
+        final Sink sink = mSinks.get(deviceId);
+        if (!mEnabled || (sink == null) || !isActive(sink.mState)) {
+            return false;
+        }
+
+        startDisconnect(sink);
+        return true;
+    }
+
+    public int getConnectionState(long deviceId) {
+        mCallCount++;
+
+        final Sink sink = mSinks.get(deviceId);
+        return (sink != null) ? sink.mState : BluetoothA2dpStates.STATE_DISCONNECTED;
+    }
+
+    /**
+     * @return The IDs of bonded sinks whose state matches any of the given
+     *         states.
+     */
+    public List<Long> getDevicesMatchingConnectionStates(int[] states) {
+        mCallCount++;
+
+        final ArrayList<Long> result = new ArrayList<Long>();
+        for (Sink sink : mSinks.values()) {
+            if (!sink.mBonded) {
+                continue;
+            }
+
+            for (int state : states) {
+                if (sink.mState == state) {
+                    result.add(sink.mDeviceId);
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Advances the clock, delivering every transition that falls due.
+     *
+     * @param millis The amount of time to advance by.
+     */
+    public void advanceBy(long millis) {
+        final long target = mNow + millis;
+
+        while (!mEvents.isEmpty() && (mEvents.peek().time <= target)) {
+            final Event event = mEvents.poll();
+            mNow = event.time;
+            event.action.run();
+        }
+
+        mNow = target;
+    }
+
+    /**
+     * Advances the clock until no transitions are pending.
+     */
+    public void runUntilIdle() {
+        while (!mEvents.isEmpty()) {
+            final Event event = mEvents.poll();
+            mNow = event.time;
+            event.action.run();
+        }
+    }
+
+    /**
+     * @return {@code true} if any transitions are pending.
+     */
+    public boolean hasPendingEvents() {
+        return !mEvents.isEmpty();
+    }
+
+    private void startDisconnect(final Sink sink) {
+        final int generation = ++sink.mGeneration;
+        setState(sink, BluetoothA2dpStates.STATE_DISCONNECTING);
+
+        schedule(sink.mDisconnectLatency, new Runnable() {
+            @Override
+            public void run() {
+                if (generation == sink.mGeneration) {
+                    setState(sink, BluetoothA2dpStates.STATE_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    private void setState(Sink sink, int state) {
+        final int previousState = sink.mState;
+        if (previousState == state) {
+            return;
+        }
+
+        sink.mState = state;
+        mEventCount++;
+
+        if (mListener != null) {
+            mListener.onConnectionStateChanged(sink.mDeviceId, previousState, state);
+        }
+    }
+
+    private void schedule(long delay, Runnable action) {
+        mEvents.add(new Event(mNow + Math.max(0, delay), mEvents.size() + mEventCount, action));
+    }
+
+    private static boolean isActive(int state) {
+        switch (state) {
+            case BluetoothA2dpStates.STATE_CONNECTING:
+            case BluetoothA2dpStates.STATE_CONNECTED:
+            case BluetoothA2dpStates.STATE_PLAYING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long order;
+        final Runnable action;
+
+        Event(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return (time < other.time) ? -1 : 1;
+            }
+
+            return (order < other.order) ? -1 : ((order == other.order) ? 0 : 1);
+        }
+    }
+}
@@ -40,6 +40,6 @@ public class BluetoothDeviceCompatUtils {
      * @return false on immediate error, true if bonding will begin
      */
     public static boolean createBond(BluetoothDevice receiver) {
-        return (Boolean) CompatUtils.invoke(receiver, false, METHOD_createBond);
+        return CompatUtils.invokeBoolean(receiver, false, METHOD_createBond);
     }
 }
@@ -19,6 +19,7 @@ package com.googamaphone.compat;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.HashSet;
 
 import android.text.TextUtils;
 import android.util.Log;
@@ -26,6 +27,9 @@ import android.util.Log;
 public class CompatUtils {
     private static final String TAG = CompatUtils.class.getSimpleName();
 
+    /** Methods that have already logged an invocation failure. */
+    private static final HashSet<Method> sFailedMethods = new HashSet<Method>();
+
     public static Class<?> getClass(String className) {
         try {
             return Class.forName(className);
@@ -91,11 +95,51 @@ public class CompatUtils {
         try {
             return method.invoke(receiver, args);
         } catch (Exception e) {
-            Log.e(TAG, "Exception in invoke: " + e.getClass().getSimpleName());
+            logInvokeFailure(method, e);
+        }
+        return defaultValue;
+    }
+
+    public static boolean invokeBoolean(Object receiver, boolean defaultValue, Method method,
+            Object... args) {
+        if (method == null)
+            return defaultValue;
+        try {
+            final Object result = method.invoke(receiver, args);
+            if (result instanceof Boolean)
+                return (Boolean) result;
+        } catch (Exception e) {
+            logInvokeFailure(method, e);
+        }
+        return defaultValue;
+    }
+
+    public static int invokeInt(Object receiver, int defaultValue, Method method, Object... args) {
+        if (method == null)
+            return defaultValue;
+        try {
+            final Object result = method.invoke(receiver, args);
+            if (result instanceof Integer)
+                return (Integer) result;
+        } catch (Exception e) {
+            logInvokeFailure(method, e);
         }
         return defaultValue;
     }
 
+    /**
+     * Logs the first invocation failure for a method. Later failures are
+     * silent, since they will usually repeat on every call.
+     */
+    private static void logInvokeFailure(Method method, Exception e) {
+        synchronized (sFailedMethods) {
+            if (!sFailedMethods.add(method))
+                return;
+        }
+        Log.e(TAG, "Exception in invoke: " + e.getClass().getSimpleName() + " for "
+                + method.getName());
+    }
+
     public static Object getFieldValue(Object receiver, Object defaultValue, Field field) {
         if (field == null)
             return defaultValue;
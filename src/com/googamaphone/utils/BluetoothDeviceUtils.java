@@ -1,19 +1,30 @@
 package com.googamaphone.utils;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 
 public class BluetoothDeviceUtils {
-    public static int getDeviceId(BluetoothDevice device) {
+    public static long getDeviceId(BluetoothDevice device) {
         return getDeviceId(device.getAddress());
     }
 
-    public static int getDeviceId(String address) {
-        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
-            return 0;
-        }
+    /**
+     * @see BluetoothAddress#getDeviceId(String)
+     */
+    public static long getDeviceId(String address) {
+        return BluetoothAddress.getDeviceId(address);
+    }
+
+    /**
+     * @see BluetoothAddress#getAddress(long)
+     */
+    public static String getAddress(long deviceId) {
+        return BluetoothAddress.getAddress(deviceId);
+    }
 
-        final String longAddress = address.replaceAll(":", "");
-        return (int) (Long.parseLong(longAddress, 16));
+    /**
+     * @see BluetoothAddress#getLegacyDeviceId(long)
+     */
+    public static int getLegacyDeviceId(long deviceId) {
+        return BluetoothAddress.getLegacyDeviceId(deviceId);
     }
 }
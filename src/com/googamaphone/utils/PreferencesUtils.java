@@ -2,92 +2,82 @@
 package com.googamaphone.utils;
 
 import android.content.SharedPreferences;
+import android.support.v4.util.LongSparseArray;
 import android.util.SparseArray;
 
 import java.util.Collection;
 
 public class PreferencesUtils {
-    private static final String ESCAPE_CHARACTER = "\\";
-    private static final String ITEM_SEPARATOR = ",";
-    private static final String GROUP_SEPARATOR = ";";
-
-    private static final String[] ESCAPE_FIND = {
-            ESCAPE_CHARACTER, ITEM_SEPARATOR, GROUP_SEPARATOR
-    };
-
-    private static final String[] ESCAPE_REPLACE = {
-            ESCAPE_CHARACTER + ESCAPE_CHARACTER, ESCAPE_CHARACTER + ITEM_SEPARATOR,
-            ESCAPE_CHARACTER + GROUP_SEPARATOR
-    };
-
     public static void putSparseArray(SharedPreferences.Editor editor, String key,
                                       SparseArray<String> array) {
         final StringBuilder value = new StringBuilder();
 
         for (int i = 0; i < array.size(); i++) {
-            value.append(Integer.toString(array.keyAt(i)));
-            value.append(ITEM_SEPARATOR);
-            value.append(escape(array.valueAt(i)));
-            value.append(GROUP_SEPARATOR);
+            PreferencesCodec.appendEntry(value, array.keyAt(i), array.valueAt(i));
         }
 
         editor.putString(key, value.toString());
     }
 
-    public static void getSparseArray(SharedPreferences prefs, String key, SparseArray<String> array) {
-        final String value = prefs.getString(key, "");
-        final String[] groups = value.split(GROUP_SEPARATOR);
-
-        for (String group : groups) {
-            if (group.length() == 0) {
-                continue;
+    public static void getSparseArray(SharedPreferences prefs, String key,
+                                      final SparseArray<String> array) {
+        PreferencesCodec.parseEntries(prefs.getString(key, ""), new PreferencesCodec.EntrySink() {
+            @Override
+            public void onEntry(long key, String value) {
+                array.put((int) key, value);
             }
-
-            final String[] items = group.split(ITEM_SEPARATOR);
-
-            array.put(Integer.parseInt(items[0]), unescape(items[1]));
-        }
+        });
     }
 
-    public static void putCollection(SharedPreferences.Editor editor, String key,
-                                     Collection<Integer> collection) {
+    public static void putLongSparseArray(SharedPreferences.Editor editor, String key,
+                                          LongSparseArray<String> array) {
         final StringBuilder value = new StringBuilder();
 
-        for (Integer item : collection) {
-            value.append(item.toString());
-            value.append(ITEM_SEPARATOR);
+        for (int i = 0; i < array.size(); i++) {
+            PreferencesCodec.appendEntry(value, array.keyAt(i), array.valueAt(i));
         }
 
         editor.putString(key, value.toString());
     }
 
-    public static void getCollection(SharedPreferences prefs, String key,
-                                     Collection<Integer> collection) {
-        final String value = prefs.getString(key, "");
-        final String[] items = value.split(ITEM_SEPARATOR);
-
-        for (String item : items) {
-            if (item.length() == 0) {
-                continue;
+    public static void getLongSparseArray(SharedPreferences prefs, String key,
+                                          final LongSparseArray<String> array) {
+        PreferencesCodec.parseEntries(prefs.getString(key, ""), new PreferencesCodec.EntrySink() {
+            @Override
+            public void onEntry(long key, String value) {
+                array.put(key, value);
             }
-
-            collection.add(Integer.parseInt(item));
-        }
+        });
     }
 
-    private static String escape(String text) {
-        for (int i = 0; i < ESCAPE_FIND.length; i++) {
-            text = text.replace(ESCAPE_FIND[i], ESCAPE_REPLACE[i]);
+    public static void putCollection(SharedPreferences.Editor editor, String key,
+                                     Collection<? extends Number> collection) {
+        final StringBuilder value = new StringBuilder();
+
+        for (Number item : collection) {
+            PreferencesCodec.appendItem(value, item.longValue());
         }
 
-        return text;
+        editor.putString(key, value.toString());
     }
 
-    private static String unescape(String text) {
-        for (int i = 0; i < ESCAPE_REPLACE.length; i++) {
-            text = text.replace(ESCAPE_REPLACE[i], ESCAPE_FIND[i]);
-        }
+    public static void getCollection(SharedPreferences prefs, String key,
+                                     final Collection<Integer> collection) {
+        PreferencesCodec.parseItems(prefs.getString(key, ""), new PreferencesCodec.ItemSink() {
+            @Override
+            public void onItem(long item) {
+                collection.add((int) item);
+            }
+        });
+    }
 
-        return text;
+    public static void getLongCollection(SharedPreferences prefs, String key,
+                                         final Collection<Long> collection) {
+        PreferencesCodec.parseItems(prefs.getString(key, ""), new PreferencesCodec.ItemSink() {
+            @Override
+            public void onItem(long item) {
+                collection.add(item);
+            }
+        });
     }
 }
@@ -0,0 +1,191 @@
+package com.googamaphone.utils;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind queue for {@link SharedPreferences}.
+ * <p>
+ * Changed keys are marked dirty and collected into a batch. After a short
+ * delay the batch is serialized on the calling thread, which must be the
+ * thread that owns the data, and committed on a background thread.
+ * </p>
+ * Example usage:
+ * <pre>
+ * mWriter = new PreferencesWriter(prefs, this, 500);
+ *
+ * public void setName(String name) {
+ *     mName = name;
+ *     mWriter.markDirty(PREF_NAME);
+ * }
+ *
+ * public void writePreferences(SharedPreferences.Editor editor, Set&lt;String&gt; keys) {
+ *     if (keys.contains(PREF_NAME)) {
+ *         editor.putString(PREF_NAME, mName);
+ *     }
+ * }
+ * </pre>
+ */
+public class PreferencesWriter {
+    private static final String TAG = PreferencesWriter.class.getSimpleName();
+
+    /**
+     * Serializes dirty preferences into an editor.
+     */
+    public interface Source {
+        /**
+         * Called on the thread that created the writer to write a batch of
+         * dirty keys.
+         *
+         * @param editor The editor to write to.
+         * @param keys The keys that changed since the last batch.
+         */
+        public void writePreferences(SharedPreferences.Editor editor, Set<String> keys);
+
+        /**
+         * Called on a background thread after a batch has been committed.
+         *
+         * @param keys The keys that were written in the batch.
+         */
+        public void onPreferencesWritten(Set<String> keys);
+    }
+
+    private final HashSet<String> mDirtyKeys = new HashSet<String>();
+
+    /** Number of batches and tasks queued on the executor. */
+    private final AtomicInteger mPendingBatches = new AtomicInteger();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler();
+
+    private final SharedPreferences mPrefs;
+    private final Source mSource;
+    private final long mDelay;
+
+    /**
+     * Constructs a new {@link PreferencesWriter}. Must be called on the thread
+     * that owns the data being written.
+     *
+     * @param prefs The preferences to write.
+     * @param source The source of dirty preference values.
+     * @param delay Delay in milliseconds used to collect changes into a batch.
+     */
+    public PreferencesWriter(SharedPreferences prefs, Source source, long delay) {
+        mPrefs = prefs;
+        mSource = source;
+        mDelay = delay;
+    }
+
+    /**
+     * Marks a key as changed and schedules it to be written.
+     *
+     * @param key The key that changed.
+     */
+    public void markDirty(String key) {
+        mDirtyKeys.add(key);
+
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.postDelayed(mWriteRunnable, mDelay);
+    }
+
+    /**
+     * Runs a task on the background thread, after every batch that has already
+     * been queued. Tasks queued while writing a batch run before that batch is
+     * committed.
+     *
+     * @param task The task to run.
+     */
+    public void execute(final Runnable task) {
+        mPendingBatches.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    mPendingBatches.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes any dirty keys and blocks until every batch has been committed.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mWriteRunnable);
+        writeBatch();
+
+        // The executor is serial, so this completes after all earlier batches.
+        final Future<?> barrier = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // Do nothing.
+            }
+        });
+
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to flush preferences", e);
+        }
+    }
+
+    /**
+     * Flushes any dirty keys and stops the background thread. The writer may
+     * not be used after calling this method.
+     */
+    public void shutdown() {
+        flush();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * @return The number of dirty keys plus the number of batches and tasks
+     *         waiting to run.
+     */
+    public int getQueueDepth() {
+        return mDirtyKeys.size() + mPendingBatches.get();
+    }
+
+    private void writeBatch() {
+        if (mDirtyKeys.isEmpty()) {
+            return;
+        }
+
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        final Set<String> keys = new HashSet<String>(mDirtyKeys);
+        mSource.writePreferences(editor, keys);
+        mDirtyKeys.clear();
+
+        mPendingBatches.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!editor.commit()) {
+                    Log.e(TAG, "Failed to commit preferences");
+                }
+
+                mPendingBatches.decrementAndGet();
+                mSource.onPreferencesWritten(keys);
+            }
+        });
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeBatch();
+        }
+    };
+}
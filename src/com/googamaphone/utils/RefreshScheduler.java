@@ -0,0 +1,137 @@
+package com.googamaphone.utils;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Coalesces bursts of refresh requests into a single refresh.
+ * <p>
+ * Each call to {@link #schedule()} pushes the pending refresh back by the
+ * coalescing window, but never further than the maximum latency after the
+ * first request in the burst. This ensures the final state is always shown
+ * promptly, even when requests keep arriving.
+ * </p>
+ * Example usage:
+ * <pre>
+ * private final RefreshScheduler mScheduler = new RefreshScheduler(
+ *         mHandler, mRefreshRunnable, 100, 500);
+ *
+ * public void onSomethingChanged() {
+ *     mScheduler.schedule();
+ * }
+ * </pre>
+ */
+public class RefreshScheduler {
+    private final Handler mHandler;
+    private final Runnable mRefresh;
+    private final long mWindow;
+    private final long mMaxLatency;
+
+    /** Uptime of the first request in the pending burst, or -1 if idle. */
+    private long mFirstRequestTime = -1;
+
+    private int mRequestCount;
+    private int mCoalescedCount;
+    private int mExecutedCount;
+
+    /**
+     * Constructs a new {@link RefreshScheduler}.
+     *
+     * @param handler The handler on which to run refreshes.
+     * @param refresh The refresh to run.
+     * @param window The coalescing window in milliseconds.
+     * @param maxLatency The maximum delay in milliseconds between the first
+     *            request in a burst and the refresh.
+     */
+    public RefreshScheduler(Handler handler, Runnable refresh, long window, long maxLatency) {
+        if ((handler == null) || (refresh == null) || (window < 0) || (maxLatency < window)) {
+            throw new IllegalArgumentException();
+        }
+
+        mHandler = handler;
+        mRefresh = refresh;
+        mWindow = window;
+        mMaxLatency = maxLatency;
+    }
+
+    /**
+     * Requests a refresh, merging it with any refresh that is already pending.
+     */
+    public void schedule() {
+        final long now = SystemClock.uptimeMillis();
+
+        mRequestCount++;
+
+        if (mFirstRequestTime < 0) {
+            mFirstRequestTime = now;
+        } else {
+            mCoalescedCount++;
+        }
+
+        final long runTime = Math.min(now + mWindow, mFirstRequestTime + mMaxLatency);
+
+        mHandler.removeCallbacks(mRunnable);
+        mHandler.postAtTime(mRunnable, runTime);
+    }
+
+    /**
+     * Runs the refresh immediately, replacing any pending refresh.
+     */
+    public void runNow() {
+        if (mFirstRequestTime >= 0) {
+            mCoalescedCount++;
+        }
+
+        cancel();
+        execute();
+    }
+
+    /**
+     * Cancels the pending refresh, if any.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mRunnable);
+        mFirstRequestTime = -1;
+    }
+
+    /**
+     * @return {@code true} if a refresh is pending.
+     */
+    public boolean isPending() {
+        return (mFirstRequestTime >= 0);
+    }
+
+    /**
+     * @return The number of calls to {@link #schedule()}.
+     */
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return The number of requests that were merged into another refresh.
+     */
+    public int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return The number of refreshes that actually ran.
+     */
+    public int getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    private void execute() {
+        mExecutedCount++;
+        mRefresh.run();
+    }
+
+    private final Runnable mRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFirstRequestTime = -1;
+            execute();
+        }
+    };
+}